@@ -0,0 +1,114 @@
+package warcsearch.bench;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import warcsearch.ExtendedWarcRecord;
+import warcsearch.HtmlTextExtractor;
+import warcsearch.IndexSettings;
+import warcsearch.NearDuplicates;
+import warcsearch.PageRecord;
+
+/**
+ * ExtractBenchmark measures the parsing stage per page, pages of the archive are taken in turn
+ * - decode - http header and payload decoding with the charset of the page
+ * - extractStream, extractJsoup - body text of decoded page by the streaming extractor and by jsoup DOM
+ * - parse - whole ExtendedWarcRecord.parse() as the Parser runs it, with both extractors
+ * - fingerprint - SimHash of the extracted text
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractBenchmark {
+
+	/** number of pages taken from the archive */
+	private static final int PAGES = 1000;
+
+	/**
+	 * extractor of the parse benchmark, the others do not depend on it
+	 */
+	@State(Scope.Thread)
+	public static class Extractor {
+
+		@Param({ IndexSettings.EXTRACTOR_STREAM, IndexSettings.EXTRACTOR_JSOUP })
+		public String extractor;
+
+	}
+
+	private List<Fixtures.Sample> _samples;
+
+	/** decoded pages and their texts */
+	private String[] _html;
+	private CharBuffer[] _text;
+
+	/** buffers of this thread, as every parsing thread has */
+	private final HtmlTextExtractor _extractor = new HtmlTextExtractor();
+
+	private int _next;
+
+	@Setup
+	public void setUp() throws IOException {
+		_samples = Fixtures.samples(Fixtures.archive(Fixtures.FORMAT_WARC), PAGES);
+		_html = new String[_samples.size()];
+		_text = new CharBuffer[_samples.size()];
+		for (int i = 0; i < _samples.size(); i++) {
+			ExtendedWarcRecord rec = _samples.get(i).toRecord();
+			rec.readHttpHeader();
+			_html[i] = _extractor.decode(rec.getPayload(), rec.getHttpHeader().getCharset(rec.getPayload())).toString();
+			_text[i] = _extractor.extractCopy(_html[i]);
+		}
+	}
+
+	private int next() {
+		if (++_next == _samples.size()) _next = 0;
+		return _next;
+	}
+
+	@Benchmark
+	public CharBuffer decode() {
+		ExtendedWarcRecord rec = _samples.get(next()).toRecord();
+		rec.readHttpHeader();
+		Charset charset = rec.getHttpHeader().getCharset(rec.getPayload());
+		return _extractor.decode(rec.getPayload(), charset);
+	}
+
+	@Benchmark
+	public CharBuffer extractStream() {
+		return _extractor.extractCopy(_html[next()]);
+	}
+
+	@Benchmark
+	public String extractJsoup() {
+		return Jsoup.parse(_html[next()]).body().text();
+	}
+
+	@Benchmark
+	public PageRecord parse(Extractor param) {
+		ExtendedWarcRecord rec = _samples.get(next()).toRecord();
+		rec.readHttpHeader();
+		return rec.parse(IndexSettings.EXTRACTOR_JSOUP.equals(param.extractor), _extractor);
+	}
+
+	@Benchmark
+	public long fingerprint() {
+		return NearDuplicates.fingerprint(_text[next()]);
+	}
+
+}
@@ -0,0 +1,194 @@
+package warcsearch.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import warcsearch.ExtendedWarcRecord;
+import warcsearch.GzipWarcReader;
+import warcsearch.MappedWarcReader;
+import warcsearch.WarcRecordReader;
+
+/**
+ * Fixtures prepares archives, records and queries for the benchmarks
+ * by default the archive is synthetic (see SyntheticWarc), generated once
+ * into the temp directory and reused by later runs, the same on every machine
+ * sample archive and topics can be given by system properties
+ * (-jvmArgs "-Dwarcsearch.bench.archive=/data/sample.warc.gz" for JMH):
+ * - warcsearch.bench.archive - sample WARC file used instead of the synthetic one
+ * - warcsearch.bench.topics - topics file ("id:query" per line) for search benchmarks
+ * - warcsearch.bench.records, warcsearch.bench.page-kb - size of the synthetic archive
+ */
+public class Fixtures {
+
+	public static final String ARCHIVE_PROPERTY = "warcsearch.bench.archive";
+	public static final String TOPICS_PROPERTY = "warcsearch.bench.topics";
+	public static final String RECORDS_PROPERTY = "warcsearch.bench.records";
+	public static final String PAGE_KB_PROPERTY = "warcsearch.bench.page-kb";
+
+	/** seed of the synthetic archive */
+	public static final long SEED = 42;
+
+	/** default size of the synthetic archive */
+	private static final int DEFAULT_RECORDS = 2000;
+	private static final int DEFAULT_PAGE_KB = 8;
+
+	/** archive formats of synthetic archive */
+	public static final String FORMAT_WARC = "warc";
+	public static final String FORMAT_GZIP = "warc.gz";
+
+	/** number of synthetic queries */
+	private static final int QUERIES = 500;
+
+	/**
+	 * html response of the archive kept on heap, turned into fresh record for every use,
+	 * because parsing consumes the record
+	 */
+	public static class Sample {
+
+		private final String _recordId;
+		private final String _targetUri;
+		private final String _date;
+		private final String _trecId;
+		private final byte[] _block;
+
+		private Sample(ExtendedWarcRecord rec, byte[] block) {
+			_recordId = rec.getRecordId();
+			_targetUri = rec.getTargetUri();
+			_date = rec.getDate();
+			_trecId = rec.getTrecId();
+			_block = block;
+		}
+
+		/**
+		 * @return unparsed record with the http response as payload
+		 */
+		public ExtendedWarcRecord toRecord() {
+			return new ExtendedWarcRecord("response", _recordId, _targetUri, _date, _trecId,
+					ByteBuffer.wrap(_block), 0, _block.length);
+		}
+
+	}
+
+	/**
+	 * @param format FORMAT_WARC or FORMAT_GZIP, ignored for sample archive
+	 * @return sample archive if given, synthetic archive of the format otherwise
+	 * @throws IOException
+	 */
+	public static synchronized File archive(String format) throws IOException {
+		String sample = System.getProperty(ARCHIVE_PROPERTY);
+		if (sample != null) {
+			File file = new File(sample);
+			if (!file.isFile())
+				throw new IOException("There is no sample archive " + sample + ".");
+			return file;
+		}
+		int records = Integer.getInteger(RECORDS_PROPERTY, DEFAULT_RECORDS);
+		int pageKb = Integer.getInteger(PAGE_KB_PROPERTY, DEFAULT_PAGE_KB);
+		File file = new File(System.getProperty("java.io.tmpdir"),
+				"warcsearch-bench-" + SEED + "-" + records + "x" + pageKb + "k." + format);
+		if (!file.isFile()) {
+			// keeps the suffix, it decides whether the archive is gzipped
+			File tmp = new File(file.getParentFile(), "tmp-" + file.getName());
+			new SyntheticWarc(SEED).setRecords(records).setPageBytes(pageKb * 1024).write(tmp);
+			if (!tmp.renameTo(file))
+				throw new IOException("There was a problem with writing " + file + ".");
+		}
+		return file;
+	}
+
+	/**
+	 * @param channel opened archive
+	 * @return reader of the whole archive, plain or gzip
+	 * @throws IOException
+	 */
+	public static WarcRecordReader reader(FileChannel channel) throws IOException {
+		if (GzipWarcReader.isGzip(channel))
+			return new GzipWarcReader(channel, 0, channel.size());
+		return new MappedWarcReader(channel, 0, channel.size());
+	}
+
+	/**
+	 * reads successful html responses of the archive into memory
+	 * @param archive the archive
+	 * @param max maximum number of responses
+	 * @return the responses in archive order
+	 * @throws IOException
+	 */
+	public static List<Sample> samples(File archive, int max) throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		RandomAccessFile raf = new RandomAccessFile(archive, "r");
+		try {
+			WarcRecordReader reader = reader(raf.getChannel());
+			ExtendedWarcRecord rec;
+			while (samples.size() < max && (rec = reader.next()) != null) {
+				if (!"response".equals(rec.getType())) continue;
+				ByteBuffer payload = rec.getPayload();
+				byte[] block = new byte[payload.remaining()];
+				payload.get(block);
+				if (rec.readHttpHeader())
+					samples.add(new Sample(rec, block));
+			}
+		} finally {
+			raf.close();
+		}
+		if (samples.isEmpty())
+			throw new IOException("There are no html responses in " + archive + ".");
+		return samples;
+	}
+
+	/**
+	 * @return queries of the topics file if given, otherwise two or three
+	 *         words of the synthetic vocabulary, neither too rare nor stop words
+	 * @throws IOException
+	 */
+	public static String[] queries() throws IOException {
+		List<String> queries = new ArrayList<String>();
+		String topics = System.getProperty(TOPICS_PROPERTY);
+		if (topics != null) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(topics), "UTF-8"));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					int colon = line.indexOf(':');
+					if (colon >= 0 && line.substring(colon + 1).trim().length() > 0)
+						queries.add(line.substring(colon + 1).trim());
+				}
+			} finally {
+				br.close();
+			}
+		} else {
+			SyntheticWarc warc = new SyntheticWarc(SEED);
+			Random random = new Random(SEED);
+			for (int i = 0; i < QUERIES; i++) {
+				StringBuilder query = new StringBuilder();
+				int words = 2 + random.nextInt(2);
+				for (int w = 0; w < words; w++)
+					query.append(w > 0 ? " " : "").append(warc.getWord(20 + random.nextInt(2000)));
+				queries.add(query.toString());
+			}
+		}
+		return queries.toArray(new String[queries.size()]);
+	}
+
+	/**
+	 * deletes the directory with its contents
+	 * @param dir the directory
+	 */
+	public static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file: files)
+				delete(file);
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,98 @@
+package warcsearch.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import warcsearch.DocumentTemplate;
+import warcsearch.ExtendedWarcRecord;
+import warcsearch.HtmlTextExtractor;
+import warcsearch.PageRecord;
+
+/**
+ * IndexBenchmark measures the indexing stage per page, parsed pages of the archive are taken in turn
+ * - buildDocument - filling the reused DocumentTemplate
+ * - addDocument - IndexWriter.addDocument of the filled template, analysis and flushes included,
+ *   the writer is configured as Indexer configures it and writes to memory
+ *   (new writer every iteration), so the disk does not add noise
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+
+	/** number of pages taken from the archive */
+	private static final int PAGES = 1000;
+
+	private List<PageRecord> _pages;
+
+	private final DocumentTemplate _template = new DocumentTemplate();
+
+	private RAMDirectory _dir;
+	private IndexWriter _writer;
+
+	private int _next;
+
+	@Setup
+	public void setUp() throws IOException {
+		HtmlTextExtractor extractor = new HtmlTextExtractor();
+		_pages = new ArrayList<PageRecord>();
+		for (Fixtures.Sample sample: Fixtures.samples(Fixtures.archive(Fixtures.FORMAT_WARC), PAGES)) {
+			ExtendedWarcRecord rec = sample.toRecord();
+			rec.readHttpHeader();
+			_pages.add(rec.parse(false, extractor));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void openWriter() throws IOException {
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_47, new StandardAnalyzer(Version.LUCENE_47));
+		config.setSimilarity(new DefaultSimilarity());
+		_dir = new RAMDirectory();
+		_writer = new IndexWriter(_dir, config);
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeWriter() throws IOException {
+		_writer.close();
+		_dir.close();
+	}
+
+	private PageRecord next() {
+		if (++_next == _pages.size()) _next = 0;
+		return _pages.get(_next);
+	}
+
+	@Benchmark
+	public Document buildDocument() {
+		return _template.fill(next());
+	}
+
+	@Benchmark
+	public void addDocument() throws IOException {
+		_writer.addDocument(_template.fill(next()));
+	}
+
+}
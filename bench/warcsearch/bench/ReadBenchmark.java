@@ -0,0 +1,78 @@
+package warcsearch.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import warcsearch.ExtendedWarcRecord;
+import warcsearch.IndexSettings;
+import warcsearch.Metrics;
+import warcsearch.RecordQueue;
+import warcsearch.WarcRecordReader;
+import warcsearch.WebArchive;
+
+/**
+ * ReadBenchmark measures the reading stage - cutting the archive into records
+ * and checking their http headers, one op reads the whole archive
+ * - readRecords - one reader over the whole file, as one WebArchive thread does
+ * - webArchive - WebArchive with one reader into the raw queue (ranges, truncation included)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+	@Param({ Fixtures.FORMAT_WARC, Fixtures.FORMAT_GZIP })
+	public String format;
+
+	private File _archive;
+
+	@Setup
+	public void setUp() throws IOException {
+		_archive = Fixtures.archive(format);
+	}
+
+	@Benchmark
+	public long readRecords(Blackhole bh) throws IOException {
+		long bytes = 0;
+		RandomAccessFile raf = new RandomAccessFile(_archive, "r");
+		try {
+			WarcRecordReader reader = Fixtures.reader(raf.getChannel());
+			ExtendedWarcRecord rec;
+			while ((rec = reader.next()) != null) {
+				if (rec.readHttpHeader()) bh.consume(rec);
+				bytes += rec.getLength();
+			}
+		} finally {
+			raf.close();
+		}
+		return bytes;
+	}
+
+	@Benchmark
+	public int webArchive() throws InterruptedException {
+		// budget of the whole archive, so nobody has to take from the queue meanwhile
+		RecordQueue<ExtendedWarcRecord> queue = new RecordQueue<ExtendedWarcRecord>("raw", Long.MAX_VALUE);
+		new WebArchive(_archive.getPath(), queue, 1, IndexSettings.DEFAULT_MAX_PAGE_BYTES, null, new Metrics()).run();
+		int records = 0;
+		while (queue.take() != null)
+			records++;
+		return records;
+	}
+
+}
@@ -0,0 +1,466 @@
+package warcsearch.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import warcsearch.IndexSettings;
+import warcsearch.Indexer;
+import warcsearch.JvmStats;
+import warcsearch.Metrics;
+import warcsearch.WarcSearch;
+import warcsearch.WebArchive;
+
+/**
+ * ScalingHarness runs the whole pipeline (WebArchive -> Parser -> Indexer, then searches)
+ * over a matrix of archive sizes and thread counts and prints throughput/scaling table
+ * archives are synthetic (see SyntheticWarc), generated once into the work directory
+ * and the same on every machine, so the table can be compared between boxes and commits
+ * every run indexes into a fresh index with checkpoints off, then runs the queries
+ * with as many searching threads as indexing threads
+ * speedup and efficiency are relative to the first thread counts of the same archive
+ */
+public class ScalingHarness {
+
+	private static final String DEFAULT_RECORDS = "1000,10000";
+	private static final String DEFAULT_THREADS = "1,2,4";
+	private static final int DEFAULT_QUERIES = 1000;
+
+	private static Option[] option_array = new Option[] {
+		new Option("h", "help", false, "displays this help message"),
+		new Option(null, "records", true, "comma separated numbers of records of archives (default " + DEFAULT_RECORDS + ")"),
+		new Option(null, "size-mb", true, "comma separated sizes of archives in MB instead of numbers of records"),
+		new Option("a", "archive", true, "comma separated existing archives instead of synthetic ones"),
+		new Option(null, "page-kb", true, "(median) size of html page in kB (default 8)"),
+		new Option(null, "page-spread", true, "sigma of log-normal page sizes, 0 for same sizes (default 1)"),
+		new Option(null, "other", true, "share of non-html responses (default 0.1)"),
+		new Option(null, "errors", true, "share of redirects and errors (default 0.05)"),
+		new Option(null, "gzip", false, "generate .warc.gz archives"),
+		new Option("t", "threads", true, "comma separated numbers of indexing threads (default " + DEFAULT_THREADS + ")"),
+		new Option("p", "parsers", true, "comma separated numbers of parsing threads, same as indexing threads if not given"),
+		new Option("r", "readers", true, "number of archive reading threads (default 1)"),
+		new Option(null, "extractor", true, "html text extractor: stream (default) or jsoup"),
+		new Option(null, "repeat", true, "runs of every configuration, the median is reported (default 1)"),
+		new Option(null, "warmup", true, "unreported runs over the first archive before the matrix (default 1)"),
+		new Option(null, "queries", true, "number of searched queries per run, 0 skips search (default " + DEFAULT_QUERIES + ")"),
+		new Option(null, "topics", true, "topics file (\"id:query\" per line), synthetic queries otherwise"),
+		new Option(null, "hits", true, "number of results per query (default 10)"),
+		new Option(null, "work-dir", true, "directory of generated archives and indexes (default temp directory)"),
+		new Option("o", "output", true, "also write the table as CSV to the file"),
+		new Option("v", "verbose", false, "keep the output of indexing"),
+	};
+
+	/**
+	 * one measured configuration
+	 */
+	private static class Row {
+
+		String _archive;
+		long _bytes;
+		int _readers;
+		int _parsers;
+		int _indexers;
+		long _docs;
+		double _indexSeconds;
+		double _cpu;
+		double _qps;
+		double _p50Ms;
+		double _p99Ms;
+		double _speedup = 1;
+		double _efficiency = 1;
+
+		private double docsPerSecond() {
+			return _docs / _indexSeconds;
+		}
+
+		private double mbPerSecond() {
+			return _bytes / 1024.0 / 1024 / _indexSeconds;
+		}
+
+		private int threads() {
+			return _parsers + _indexers;
+		}
+
+	}
+
+	private final File _workDir;
+	private final IndexSettings _template;
+	private final String[] _queries;
+	private final int _queryNo;
+	private final int _hits;
+	private final boolean _verbose;
+	private final PrintStream _out = System.out;
+	private int _run;
+
+	/**
+	 * constructor
+	 * @param workDir directory of indexes
+	 * @param template settings of all runs, thread counts are set per run
+	 * @param queries searched queries, taken in turn
+	 * @param queryNo number of searched queries per run
+	 * @param hits number of results per query
+	 * @param verbose keep the output of indexing
+	 */
+	public ScalingHarness(File workDir, IndexSettings template, String[] queries, int queryNo, int hits,
+			boolean verbose) {
+		_workDir = workDir;
+		_template = template;
+		_queries = queries;
+		_queryNo = queryNo;
+		_hits = hits;
+		_verbose = verbose;
+	}
+
+	/**
+	 * indexes the archive into fresh index and searches it
+	 * @param archive the archive
+	 * @param parsers number of parsing threads
+	 * @param indexers number of indexing (and searching) threads
+	 * @return the measured run
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	Row run(File archive, int parsers, int indexers) throws IOException, InterruptedException {
+		IndexSettings settings = copy(_template);
+		settings.setParseThreadNo(parsers);
+		settings.setThreadNo(indexers);
+		File indexDir = new File(_workDir, "index-" + (++_run));
+		Fixtures.delete(indexDir);
+		Row row = new Row();
+		row._archive = archive.getName();
+		row._bytes = archive.length();
+		row._readers = settings.getReadThreadNo();
+		row._parsers = parsers;
+		row._indexers = indexers;
+		if (!_verbose) System.setOut(new PrintStream(new NullStream()));
+		try {
+			Indexer indexer = new Indexer(indexDir, WebArchive.identity(archive.getPath()), settings);
+			try {
+				long cpuTime = JvmStats.processCpuTimeNs();
+				long startTime = System.nanoTime();
+				WarcSearch.index(archive.getPath(), indexer, settings);
+				long wallNs = System.nanoTime() - startTime;
+				row._indexSeconds = wallNs / 1e9;
+				row._cpu = cpuTime < 0 ? 0 : (double) (JvmStats.processCpuTimeNs() - cpuTime) / wallNs;
+				row._docs = indexer.getProcessedNo();
+				if (_queryNo > 0) search(indexer, indexers, row);
+			} finally {
+				indexer.close();
+			}
+		} finally {
+			System.setOut(_out);
+			Fixtures.delete(indexDir);
+		}
+		return row;
+	}
+
+	/**
+	 * searches the queries with the given number of threads sharing the indexer
+	 */
+	private void search(final Indexer indexer, int threadNo, Row row) throws InterruptedException {
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threadNo);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < threadNo; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					int q;
+					while ((q = next.getAndIncrement()) < _queryNo)
+						indexer.search(_queries[q % _queries.length], _hits);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		row._qps = _queryNo / ((System.nanoTime() - startTime) / 1e9);
+		Metrics.Timer timer = indexer.getMetrics().timer("search.time");
+		row._p50Ms = timer.getPercentileNs(0.5) / 1e6;
+		row._p99Ms = timer.getPercentileNs(0.99) / 1e6;
+	}
+
+	/**
+	 * @return copy of the settings the runs share
+	 */
+	private static IndexSettings copy(IndexSettings template) {
+		IndexSettings settings = new IndexSettings();
+		settings.setReadThreadNo(template.getReadThreadNo());
+		settings.setExtractor(template.getExtractor());
+		settings.setCheckpointMs(0);
+		return settings;
+	}
+
+	/**
+	 * @return median run by indexing time
+	 */
+	private static Row median(List<Row> rows) {
+		Collections.sort(rows, new Comparator<Row>() {
+			@Override
+			public int compare(Row a, Row b) {
+				return Double.compare(a._indexSeconds, b._indexSeconds);
+			}
+		});
+		return rows.get(rows.size() / 2);
+	}
+
+	/**
+	 * sets speedup and efficiency relative to the first row of the same archive
+	 */
+	private static void relate(List<Row> rows) {
+		Row base = null;
+		for (Row row: rows) {
+			if (base == null || !base._archive.equals(row._archive)) base = row;
+			row._speedup = base._indexSeconds / row._indexSeconds;
+			row._efficiency = row._speedup * base.threads() / row.threads();
+		}
+	}
+
+	private static final String[] COLUMNS = new String[] {
+		"archive", "MB", "docs", "r", "p", "t", "index s", "docs/s", "MB/s", "speedup", "efficiency", "cpu",
+		"search q/s", "p50 ms", "p99 ms"
+	};
+
+	private static String[] cells(Row row) {
+		return new String[] {
+			row._archive,
+			format("%.1f", row._bytes / 1024.0 / 1024),
+			"" + row._docs,
+			"" + row._readers,
+			"" + row._parsers,
+			"" + row._indexers,
+			format("%.2f", row._indexSeconds),
+			format("%.0f", row.docsPerSecond()),
+			format("%.2f", row.mbPerSecond()),
+			format("%.2f", row._speedup),
+			format("%.2f", row._efficiency),
+			format("%.2f", row._cpu),
+			format("%.0f", row._qps),
+			format("%.2f", row._p50Ms),
+			format("%.2f", row._p99Ms)
+		};
+	}
+
+	private static String format(String format, double value) {
+		return String.format(Locale.ROOT, format, value);
+	}
+
+	/**
+	 * prints the rows as markdown table, so it can be pasted into the Readme
+	 * @param rows measured runs
+	 * @param out the output
+	 */
+	static void printTable(List<Row> rows, PrintStream out) {
+		List<String[]> lines = new ArrayList<String[]>();
+		lines.add(COLUMNS);
+		for (Row row: rows)
+			lines.add(cells(row));
+		int[] widths = new int[COLUMNS.length];
+		for (String[] line: lines) {
+			for (int i = 0; i < line.length; i++)
+				widths[i] = Math.max(widths[i], line[i].length());
+		}
+		for (int l = 0; l < lines.size(); l++) {
+			StringBuilder sb = new StringBuilder("|");
+			for (int i = 0; i < widths.length; i++)
+				sb.append(' ').append(pad(lines.get(l)[i], widths[i], i > 0)).append(" |");
+			out.println(sb);
+			if (l == 0) {
+				sb = new StringBuilder("|");
+				for (int i = 0; i < widths.length; i++)
+					sb.append(pad("", widths[i] + 1, false).replace(' ', '-')).append(i > 0 ? ":|" : "-|");
+				out.println(sb);
+			}
+		}
+	}
+
+	private static String pad(String s, int width, boolean right) {
+		StringBuilder sb = new StringBuilder(width);
+		if (!right) sb.append(s);
+		for (int i = s.length(); i < width; i++)
+			sb.append(' ');
+		if (right) sb.append(s);
+		return sb.toString();
+	}
+
+	/**
+	 * writes the rows as CSV
+	 * @param rows measured runs
+	 * @param file the CSV file
+	 * @throws IOException
+	 */
+	static void writeCsv(List<Row> rows, File file) throws IOException {
+		PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (String column: COLUMNS)
+				sb.append(sb.length() > 0 ? "," : "").append(column);
+			out.println(sb);
+			for (Row row: rows) {
+				sb = new StringBuilder();
+				for (String cell: cells(row))
+					sb.append(sb.length() > 0 ? "," : "").append(cell);
+				out.println(sb);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the synthetic archive, generated if it is not in the work directory yet
+	 */
+	private static File synthetic(File workDir, long records, long sizeMb, int pageKb, double spread, double other,
+			double errors, boolean gzip) throws IOException {
+		String name = "synthetic-" + Fixtures.SEED + "-" + (sizeMb > 0 ? sizeMb + "MB" : records + "r") + "-" + pageKb
+				+ "k-s" + spread + "-o" + other + "-e" + errors + (gzip ? ".warc.gz" : ".warc");
+		File file = new File(workDir, name);
+		if (!file.isFile()) {
+			SyntheticWarc warc = new SyntheticWarc(Fixtures.SEED).setRecords((int) records)
+					.setArchiveBytes(sizeMb * 1024 * 1024).setPageBytes(pageKb * 1024).setPageSpread(spread)
+					.setMix(other, errors);
+			// keeps the suffix, it decides whether the archive is gzipped
+			File tmp = new File(workDir, "tmp-" + name);
+			warc.write(tmp);
+			if (!tmp.renameTo(file))
+				throw new IOException("There was a problem with writing " + file + ".");
+			System.out.println(warc.getStats() + " Stored in " + file + ".");
+		}
+		return file;
+	}
+
+	private static int[] parseInts(String list) {
+		String[] items = list.split(",");
+		int[] values = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			values[i] = Integer.parseInt(items[i].trim());
+		return values;
+	}
+
+	/**
+	 * runs the matrix and prints the table, e.g.
+	 * ScalingHarness --size-mb 100,1000 -t 1,2,4,8 --repeat 3 -o scaling.csv
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+		Options options = new Options();
+		for (Option o: option_array) {
+			options.addOption(o);
+		}
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+			if (cli.hasOption("h")) {
+				new HelpFormatter().printHelp("ScalingHarness", options);
+				return;
+			}
+			File workDir = new File(cli.getOptionValue("work-dir",
+					new File(System.getProperty("java.io.tmpdir"), "warcsearch-scaling").getPath()));
+			if (!workDir.isDirectory() && !workDir.mkdirs())
+				throw new IOException("There was a problem with creating " + workDir + ".");
+			// archives
+			List<File> archives = new ArrayList<File>();
+			if (cli.hasOption("a")) {
+				for (String archive: cli.getOptionValue("a").split(","))
+					archives.add(new File(archive.trim()));
+			} else {
+				boolean bySize = cli.hasOption("size-mb");
+				int pageKb = Integer.parseInt(cli.getOptionValue("page-kb", "8"));
+				double spread = Double.parseDouble(cli.getOptionValue("page-spread", "1"));
+				double other = Double.parseDouble(cli.getOptionValue("other", "0.1"));
+				double errors = Double.parseDouble(cli.getOptionValue("errors", "0.05"));
+				for (int size: parseInts(bySize ? cli.getOptionValue("size-mb") : cli.getOptionValue("records", DEFAULT_RECORDS)))
+					archives.add(synthetic(workDir, bySize ? 0 : size, bySize ? size : 0, pageKb, spread, other, errors,
+							cli.hasOption("gzip")));
+			}
+			// thread counts, parsers paired with indexers unless given
+			int[] indexers = parseInts(cli.getOptionValue("t", DEFAULT_THREADS));
+			int[] parsers = cli.hasOption("p") ? parseInts(cli.getOptionValue("p")) : null;
+			IndexSettings template = new IndexSettings();
+			template.setReadThreadNo(Integer.parseInt(cli.getOptionValue("r", "1")));
+			template.setExtractor(cli.getOptionValue("extractor", IndexSettings.EXTRACTOR_STREAM));
+			if (cli.hasOption("topics")) System.setProperty(Fixtures.TOPICS_PROPERTY, cli.getOptionValue("topics"));
+			ScalingHarness harness = new ScalingHarness(workDir, template, Fixtures.queries(),
+					Integer.parseInt(cli.getOptionValue("queries", "" + DEFAULT_QUERIES)),
+					Integer.parseInt(cli.getOptionValue("hits", "10")), cli.hasOption("v"));
+			int repeat = Math.max(1, Integer.parseInt(cli.getOptionValue("repeat", "1")));
+			int warmup = Integer.parseInt(cli.getOptionValue("warmup", "1"));
+			int cores = Runtime.getRuntime().availableProcessors();
+			System.out.println("Scaling " + archives.size() + " archives on " + cores + " cores, "
+					+ System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", java "
+					+ System.getProperty("java.version") + ".");
+			for (int i = 0; i < warmup; i++) {
+				System.out.println("Warming up " + (i + 1) + "/" + warmup + " on " + archives.get(0).getName() + "..");
+				harness.run(archives.get(0), parsers != null ? parsers[0] : indexers[0], indexers[0]);
+			}
+			List<Row> rows = new ArrayList<Row>();
+			for (File archive: archives) {
+				for (int p: parsers != null ? parsers : new int[] { 0 }) {
+					for (int t: indexers) {
+						int parseNo = parsers != null ? p : t;
+						List<Row> runs = new ArrayList<Row>();
+						for (int i = 0; i < repeat; i++) {
+							System.out.println("Indexing " + archive.getName() + " with " + parseNo + " parser and "
+									+ t + " indexer threads (" + (i + 1) + "/" + repeat + ")..");
+							runs.add(harness.run(archive, parseNo, t));
+						}
+						rows.add(median(runs));
+					}
+				}
+			}
+			relate(rows);
+			System.out.println();
+			printTable(rows, System.out);
+			if (cli.hasOption("o")) {
+				writeCsv(rows, new File(cli.getOptionValue("o")));
+				System.out.println("Table stored in " + cli.getOptionValue("o") + ".");
+			}
+		} catch (ParseException e) {
+			System.err.println("There was a problem with parsing the arguments: " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println("There was a problem with the arguments: " + e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("There was a problem with running the pipeline.");
+			e.printStackTrace();
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.err.println("There was a problem with waiting for the pipeline.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * swallows the output of indexing runs
+	 */
+	private static class NullStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+			// dropped
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// dropped
+		}
+
+	}
+
+}
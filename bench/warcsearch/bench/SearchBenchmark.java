@@ -0,0 +1,72 @@
+package warcsearch.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import warcsearch.IndexSettings;
+import warcsearch.Indexer;
+import warcsearch.Result;
+import warcsearch.WarcSearch;
+import warcsearch.WebArchive;
+
+/**
+ * SearchBenchmark measures Indexer.search latency (distribution, not just mean)
+ * over index of the archive built once per trial by the whole pipeline
+ * queries are taken in turn, result cache is off, so every search hits the index
+ * run with -t N to see latency under N concurrent searches sharing the searcher
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+	/** number of results, 10 for interactive page, 1000 for TREC run */
+	@Param({ "10", "1000" })
+	public int hits;
+
+	private File _indexDir;
+	private Indexer _indexer;
+	private String[] _queries;
+	private final AtomicInteger _next = new AtomicInteger();
+
+	@Setup
+	public void setUp() throws IOException, InterruptedException {
+		File archive = Fixtures.archive(Fixtures.FORMAT_WARC);
+		_indexDir = new File(System.getProperty("java.io.tmpdir"), "warcsearch-bench-index-" + System.nanoTime());
+		IndexSettings settings = new IndexSettings();
+		settings.setCheckpointMs(0);
+		_indexer = new Indexer(_indexDir, WebArchive.identity(archive.getPath()), settings);
+		WarcSearch.index(archive.getPath(), _indexer, settings);
+		_queries = Fixtures.queries();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		_indexer.close();
+		Fixtures.delete(_indexDir);
+	}
+
+	@Benchmark
+	public ArrayList<Result> search() {
+		int next = (_next.getAndIncrement() & Integer.MAX_VALUE) % _queries.length;
+		return _indexer.search(_queries[next], hits);
+	}
+
+}
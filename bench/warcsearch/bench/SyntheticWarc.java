@@ -0,0 +1,394 @@
+package warcsearch.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * SyntheticWarc writes deterministic WARC files for benchmarks
+ * the same seed and settings give byte for byte the same archive on every machine
+ * pages are html responses with text drawn from Zipf distributed vocabulary
+ * of made up words, so postings and query costs look like natural language
+ * .warc.gz archives get one gzip member per record, as crawlers write them
+ * by default all pages are successful html responses of the same size,
+ * page sizes can be spread log-normally and the mix can include
+ * non-html responses (images, pdfs) and redirects or errors, which the readers skip
+ * run main() to write archive from the command line
+ */
+public class SyntheticWarc {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** number of distinct words and their Zipf exponent */
+	private static final int VOCABULARY = 20000;
+	private static final double ZIPF = 1.0;
+
+	/** syllables of the made up words */
+	private static final String[] SYLLABLES = new String[] {
+		"ka", "lo", "mi", "ne", "ru", "sa", "to", "vi", "be", "da", "fu", "go", "hi", "ja", "ke",
+		"li", "mo", "nu", "pe", "qui", "ra", "se", "ti", "un", "ve", "wo", "xa", "yo", "ze", "an"
+	};
+
+	/** bounds of spread page sizes, relative to the median */
+	private static final double MIN_PAGE_FACTOR = 1.0 / 16;
+	private static final double MAX_PAGE_FACTOR = 64;
+
+	/** kinds of records */
+	private static final int KIND_HTML = 0;
+	private static final int KIND_OTHER = 1;
+	private static final int KIND_ERROR = 2;
+
+	/** content types of non-html responses */
+	private static final String[] OTHER_TYPES = new String[] {
+		"image/jpeg", "image/png", "application/pdf", "text/css", "application/javascript"
+	};
+
+	/** status lines of unsuccessful responses */
+	private static final String[] ERROR_STATUSES = new String[] {
+		"301 Moved Permanently", "302 Found", "404 Not Found", "500 Internal Server Error"
+	};
+
+	private final long _seed;
+	private int _records = 1000;
+	private long _archiveBytes = 0;
+	private int _pageBytes = 8 * 1024;
+	private double _pageSpread = 0;
+	private double _otherShare = 0;
+	private double _errorShare = 0;
+
+	/** numbers of written records and bytes by kind */
+	private final long[] _written = new long[3];
+	private long _writtenBytes;
+
+	/** vocabulary and cumulative Zipf weights of its words */
+	private final String[] _words = new String[VOCABULARY];
+	private final double[] _cumulative = new double[VOCABULARY];
+
+	/**
+	 * constructor
+	 * @param seed seed of the archive, same seed gives same archive
+	 */
+	public SyntheticWarc(long seed) {
+		_seed = seed;
+		// vocabulary does not depend on the seed, so archives of different seeds share words
+		Random random = new Random(0);
+		for (int i = 0; i < VOCABULARY; i++) {
+			StringBuilder word = new StringBuilder();
+			int syllables = 1 + Math.min(4, (int) Math.round(Math.log(i + 2) / 2));
+			for (int s = 0; s < syllables; s++)
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			_words[i] = word.toString();
+		}
+		double sum = 0;
+		for (int i = 0; i < VOCABULARY; i++) {
+			sum += 1.0 / Math.pow(i + 1, ZIPF);
+			_cumulative[i] = sum;
+		}
+		for (int i = 0; i < VOCABULARY; i++)
+			_cumulative[i] /= sum;
+	}
+
+	/**
+	 * @param records number of records of the archive
+	 * @return this generator
+	 */
+	public SyntheticWarc setRecords(int records) {
+		_records = records;
+		return this;
+	}
+
+	/**
+	 * @param archiveBytes size of the archive (uncompressed) in bytes, records are written
+	 *        until the archive reaches it, 0 writes the set number of records instead
+	 * @return this generator
+	 */
+	public SyntheticWarc setArchiveBytes(long archiveBytes) {
+		_archiveBytes = archiveBytes;
+		return this;
+	}
+
+	/**
+	 * @param pageBytes size of html page in bytes, median size if the sizes are spread
+	 * @return this generator
+	 */
+	public SyntheticWarc setPageBytes(int pageBytes) {
+		_pageBytes = pageBytes;
+		return this;
+	}
+
+	/**
+	 * @param pageSpread sigma of log-normal page sizes around the median,
+	 *        0 for pages of the same size, 1 is about the spread of real crawls
+	 * @return this generator
+	 */
+	public SyntheticWarc setPageSpread(double pageSpread) {
+		_pageSpread = pageSpread;
+		return this;
+	}
+
+	/**
+	 * @param otherShare share of non-html responses (images, pdfs, css, scripts)
+	 * @param errorShare share of redirects and errors
+	 * @return this generator
+	 */
+	public SyntheticWarc setMix(double otherShare, double errorShare) {
+		if (otherShare < 0 || errorShare < 0 || otherShare + errorShare > 1)
+			throw new IllegalArgumentException("Shares of records must be within 0 and 1, not "
+					+ otherShare + " and " + errorShare + ".");
+		_otherShare = otherShare;
+		_errorShare = errorShare;
+		return this;
+	}
+
+	/**
+	 * @param rank rank of the word, 0 is the most frequent
+	 * @return the word of the vocabulary
+	 */
+	public String getWord(int rank) {
+		return _words[rank];
+	}
+
+	/**
+	 * draws a word from the Zipf distribution
+	 */
+	private String word(Random random) {
+		int i = Arrays.binarySearch(_cumulative, random.nextDouble());
+		return _words[Math.min(VOCABULARY - 1, i < 0 ? -i - 1 : i)];
+	}
+
+	/**
+	 * writes the archive, gzipped if the file name ends with .gz
+	 * @param file the archive
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		boolean gzip = file.getName().endsWith(".gz");
+		Random random = new Random(_seed);
+		Arrays.fill(_written, 0);
+		_writtenBytes = 0;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			for (int i = 0; _archiveBytes > 0 ? _writtenBytes < _archiveBytes : i < _records; i++) {
+				byte[] record = record(random, i);
+				_writtenBytes += record.length;
+				if (gzip) {
+					GZIPOutputStream member = new GZIPOutputStream(new NonClosingStream(out));
+					member.write(record);
+					member.close();
+				} else {
+					out.write(record);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return numbers of written records by kind and size of the archive
+	 */
+	public String getStats() {
+		return "Wrote " + (_written[KIND_HTML] + _written[KIND_OTHER] + _written[KIND_ERROR]) + " records ("
+				+ _written[KIND_HTML] + " html, " + _written[KIND_OTHER] + " other, " + _written[KIND_ERROR]
+				+ " redirects and errors) of " + _writtenBytes / 1024 / 1024 + "MB.";
+	}
+
+	/**
+	 * @return kind of the next record, draws from the random only if the mix is set,
+	 *         so archives of html pages only stay the same
+	 */
+	private int kind(Random random) {
+		if (_otherShare == 0 && _errorShare == 0) return KIND_HTML;
+		double r = random.nextDouble();
+		if (r < _otherShare) return KIND_OTHER;
+		if (r < _otherShare + _errorShare) return KIND_ERROR;
+		return KIND_HTML;
+	}
+
+	/**
+	 * @return size of the next page, log-normal around the median if spread
+	 */
+	private int pageBytes(Random random) {
+		if (_pageSpread <= 0) return _pageBytes;
+		double factor = Math.exp(_pageSpread * random.nextGaussian());
+		factor = Math.max(MIN_PAGE_FACTOR, Math.min(MAX_PAGE_FACTOR, factor));
+		return (int) (_pageBytes * factor);
+	}
+
+	/**
+	 * @return one response record of the next kind
+	 */
+	private byte[] record(Random random, int i) throws IOException {
+		int kind = kind(random);
+		_written[kind]++;
+		byte[] body;
+		String http;
+		if (kind == KIND_OTHER) {
+			String type = OTHER_TYPES[random.nextInt(OTHER_TYPES.length)];
+			body = new byte[pageBytes(random)];
+			random.nextBytes(body);
+			http = "HTTP/1.1 200 OK\r\nContent-Type: " + type + "\r\nContent-Length: " + body.length + "\r\n\r\n";
+		} else if (kind == KIND_ERROR) {
+			String status = ERROR_STATUSES[random.nextInt(ERROR_STATUSES.length)];
+			body = ("<html><head><title>" + status + "</title></head><body><h1>" + status
+					+ "</h1></body></html>\n").getBytes(UTF8);
+			http = "HTTP/1.1 " + status + "\r\n"
+					+ (status.startsWith("3") ? "Location: http://www.example.com/moved/" + i + "\r\n" : "")
+					+ "Content-Type: text/html; charset=utf-8\r\nContent-Length: " + body.length + "\r\n\r\n";
+		} else {
+			body = page(random, pageBytes(random)).getBytes(UTF8);
+			http = "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: "
+					+ body.length + "\r\n\r\n";
+		}
+		ByteArrayOutputStream block = new ByteArrayOutputStream(body.length + 256);
+		block.write(http.getBytes(UTF8));
+		block.write(body);
+		String header = "WARC/1.0\r\n"
+				+ "WARC-Type: response\r\n"
+				+ "WARC-Target-URI: http://site" + random.nextInt(100) + ".example.com/page/" + i + "\r\n"
+				+ "WARC-Date: " + date(random) + "\r\n"
+				+ "WARC-Record-ID: <urn:uuid:" + new UUID(_seed, i) + ">\r\n"
+				+ "WARC-TREC-ID: synthetic-" + _seed + "-" + i + "\r\n"
+				+ "Content-Length: " + block.size() + "\r\n\r\n";
+		ByteArrayOutputStream record = new ByteArrayOutputStream(block.size() + header.length() + 4);
+		record.write(header.getBytes(UTF8));
+		block.writeTo(record);
+		record.write("\r\n\r\n".getBytes(UTF8));
+		return record.toByteArray();
+	}
+
+	/**
+	 * @return WARC-Date within 2010-2013
+	 */
+	private static String date(Random random) {
+		return String.format(Locale.ROOT, "%04d-%02d-%02dT%02d:%02d:%02dZ", 2010 + random.nextInt(4),
+				1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+	}
+
+	/**
+	 * html page of about the given size - title, menu, paragraphs,
+	 * script and style the extractors have to skip
+	 */
+	private String page(Random random, int bytes) {
+		StringBuilder sb = new StringBuilder(bytes + 256);
+		sb.append("<!DOCTYPE html>\n<html><head><title>");
+		for (int w = 0; w < 5; w++)
+			sb.append(w > 0 ? " " : "").append(word(random));
+		sb.append("</title>\n<style>body { font-family: sans-serif; } .menu a { color: #333; }</style>\n")
+				.append("<script>var page = { id: ").append(random.nextInt())
+				.append(", tags: ['a', 'b'] }; if (page.id < 0) { document.title = '&lt;x&gt;'; }</script>\n")
+				.append("</head><body>\n<div class=\"menu\"><a href=\"/\">home</a> <a href=\"/about\">about</a></div>\n");
+		while (sb.length() < bytes) {
+			sb.append("<p>");
+			int words = 20 + random.nextInt(80);
+			for (int w = 0; w < words; w++) {
+				if (w > 0) sb.append(' ');
+				if (random.nextInt(30) == 0) {
+					sb.append("<a href=\"/w/").append(w).append("\">").append(word(random)).append("</a>");
+				} else if (random.nextInt(50) == 0) {
+					sb.append("<b>").append(word(random)).append("</b> &amp;");
+				} else {
+					sb.append(word(random));
+				}
+			}
+			sb.append(".</p>\n");
+		}
+		sb.append("<!-- generated --></body></html>\n");
+		return sb.toString();
+	}
+
+	private static Option[] option_array = new Option[] {
+		new Option("h", "help", false, "displays this help message"),
+		new Option("o", "output", true, "archive to write, gzipped if it ends with .gz"),
+		new Option(null, "seed", true, "seed of the archive (default 42)"),
+		new Option(null, "records", true, "number of records (default 1000)"),
+		new Option(null, "size-mb", true, "size of the archive in MB instead of number of records"),
+		new Option(null, "page-kb", true, "(median) size of html page in kB (default 8)"),
+		new Option(null, "page-spread", true, "sigma of log-normal page sizes, 0 for same sizes (default 0)"),
+		new Option(null, "other", true, "share of non-html responses (default 0)"),
+		new Option(null, "errors", true, "share of redirects and errors (default 0)"),
+	};
+
+	/**
+	 * writes synthetic archive, e.g.
+	 * SyntheticWarc -o large.warc.gz --size-mb 1024 --page-spread 1 --other 0.2 --errors 0.05
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+		Options options = new Options();
+		for (Option o: option_array) {
+			options.addOption(o);
+		}
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+			if (!cli.hasOption("o") || cli.hasOption("h")) {
+				new HelpFormatter().printHelp("SyntheticWarc -o archive.warc[.gz]", options);
+				return;
+			}
+			SyntheticWarc warc = new SyntheticWarc(Long.parseLong(cli.getOptionValue("seed", "" + Fixtures.SEED)))
+					.setRecords(Integer.parseInt(cli.getOptionValue("records", "1000")))
+					.setArchiveBytes(Long.parseLong(cli.getOptionValue("size-mb", "0")) * 1024 * 1024)
+					.setPageBytes(Integer.parseInt(cli.getOptionValue("page-kb", "8")) * 1024)
+					.setPageSpread(Double.parseDouble(cli.getOptionValue("page-spread", "0")))
+					.setMix(Double.parseDouble(cli.getOptionValue("other", "0")),
+							Double.parseDouble(cli.getOptionValue("errors", "0")));
+			File file = new File(cli.getOptionValue("o"));
+			warc.write(file);
+			System.out.println(warc.getStats() + " Stored in " + file + ".");
+		} catch (ParseException e) {
+			System.err.println("There was a problem with parsing the arguments: " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println("There was a problem with the arguments: " + e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("There was a problem with writing the archive.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * lets gzip members be closed without closing the archive
+	 */
+	private static class NonClosingStream extends OutputStream {
+
+		private final OutputStream _out;
+
+		private NonClosingStream(OutputStream out) {
+			_out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			_out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_out.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			// the archive stays open
+		}
+
+	}
+
+}
@@ -0,0 +1,187 @@
+package warcsearch;
+
+/**
+ * Autotuner resizes parsing and indexing thread pools while the pipeline runs
+ * every interval it samples indexing throughput, occupancy of the raw and parsed queues
+ * and cpu use of the process, then climbs one thread at a time:
+ * - full parsed queue means indexers are behind, full raw queue means parsers are behind,
+ *   the slower stage gets one more thread while cpus are not saturated
+ * - with saturated cpus the stage that is ahead gives one thread back
+ * - a change that lowers throughput is reverted and not tried again for a while
+ * the best configuration seen is logged at the end for reuse with -p and -t
+ * number of shards stays as it was configured, extra indexers share the writers
+ */
+public class Autotuner implements Runnable {
+
+	/** default interval between two samples */
+	public static final long DEFAULT_INTERVAL_MS = 2000;
+
+	/** queue fill over which its consumer stage is behind */
+	private static final double BEHIND_FILL = 0.5;
+
+	/** cpu use over which there is nothing more to run threads on */
+	private static final double SATURATED_CPU = 0.9;
+
+	/** a change is kept if throughput does not drop under this share of the previous one */
+	private static final double KEEP_RATE = 0.95;
+
+	/** number of intervals a reverted change is not tried again */
+	private static final int BACKOFF = 5;
+
+	private final RecordQueue<ExtendedWarcRecord> _rawQueue;
+	private final RecordQueue<PageRecord> _parsedQueue;
+	private final Parser _parser;
+	private final Indexer _indexer;
+	private final long _intervalMs;
+
+	/** upper limit of threads of one stage */
+	private final int _maxThreads;
+
+	private final int _cpuNo;
+
+	private volatile boolean _running = true;
+
+	/** best configuration seen */
+	private volatile int _bestParsers;
+	private volatile int _bestIndexers;
+	private volatile double _bestRate = -1;
+
+	/**
+	 * constructor
+	 * @param rawQueue queue from readers to parsers
+	 * @param parser parsing stage
+	 * @param indexer indexing stage
+	 * @param intervalMs interval between two samples
+	 */
+	public Autotuner(RecordQueue<ExtendedWarcRecord> rawQueue, Parser parser, Indexer indexer, long intervalMs) {
+		_rawQueue = rawQueue;
+		_parsedQueue = indexer.getQueue();
+		_parser = parser;
+		_indexer = indexer;
+		_intervalMs = intervalMs;
+		_cpuNo = Runtime.getRuntime().availableProcessors();
+		_maxThreads = Math.max(2, 4 * _cpuNo);
+		_bestParsers = parser.getPool().size();
+		_bestIndexers = indexer.getPool().size();
+	}
+
+	/**
+	 * stops the tuning
+	 */
+	public void stop() {
+		_running = false;
+	}
+
+	/**
+	 * samples the pipeline every _intervalMs until stopped
+	 */
+	@Override
+	public void run() {
+		WorkerPool parsers = _parser.getPool();
+		WorkerPool indexers = _indexer.getPool();
+		long processed = _indexer.getProcessedNo();
+		long cpu = JvmStats.processCpuTimeNs();
+		long time = System.nanoTime();
+		// pool changed by the last step, its previous size and throughput before the step
+		WorkerPool changed = null;
+		int changedFrom = 0;
+		double rateBefore = 0;
+		int parserBackoff = 0;
+		int indexerBackoff = 0;
+		while (_running) {
+			try {
+				Thread.sleep(_intervalMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (!_running) break;
+			long nowProcessed = _indexer.getProcessedNo();
+			long nowCpu = JvmStats.processCpuTimeNs();
+			long now = System.nanoTime();
+			double seconds = (now - time) / 1000000000.0;
+			double rate = (nowProcessed - processed) / seconds;
+			double load = cpu < 0 || nowCpu < 0 ? 0 : (nowCpu - cpu) / 1000000000.0 / seconds / _cpuNo;
+			double rawFill = fill(_rawQueue);
+			double parsedFill = fill(_parsedQueue);
+			processed = nowProcessed;
+			cpu = nowCpu;
+			time = now;
+			if (parserBackoff > 0) parserBackoff--;
+			if (indexerBackoff > 0) indexerBackoff--;
+			if (rate > _bestRate) {
+				_bestRate = rate;
+				_bestParsers = parsers.size();
+				_bestIndexers = indexers.size();
+			}
+			System.out.println("INFO: Autotuner " + Math.round(rate) + " docs/s, cpu " + percent(load)
+					+ ", raw queue " + percent(rawFill) + ", parsed queue " + percent(parsedFill) + ", "
+					+ parsers.size() + " parser and " + indexers.size() + " indexer threads.");
+			if (changed != null) {
+				WorkerPool last = changed;
+				changed = null;
+				if (rate < rateBefore * KEEP_RATE) {
+					System.out.println("INFO: Autotuner reverting " + name(last) + " threads to " + changedFrom
+							+ ", throughput dropped from " + Math.round(rateBefore) + " docs/s.");
+					last.resize(changedFrom);
+					if (last == parsers) parserBackoff = BACKOFF;
+					else indexerBackoff = BACKOFF;
+					continue;
+				}
+			}
+			WorkerPool next = null;
+			int size = 0;
+			if (load < SATURATED_CPU) {
+				// grow the stage that is behind
+				if (parsedFill > BEHIND_FILL && indexerBackoff == 0 && indexers.size() < _maxThreads) {
+					next = indexers;
+					size = indexers.size() + 1;
+				} else if (rawFill > BEHIND_FILL && parserBackoff == 0 && parsers.size() < _maxThreads) {
+					next = parsers;
+					size = parsers.size() + 1;
+				}
+			} else {
+				// cpus are busy, the stage that is ahead gives a thread back
+				if (parsedFill > BEHIND_FILL && rawFill <= BEHIND_FILL && parserBackoff == 0 && parsers.size() > 1) {
+					next = parsers;
+					size = parsers.size() - 1;
+				} else if (rawFill > BEHIND_FILL && parsedFill <= BEHIND_FILL && indexerBackoff == 0
+						&& indexers.size() > 1) {
+					next = indexers;
+					size = indexers.size() - 1;
+				}
+			}
+			if (next == null) continue;
+			changed = next;
+			changedFrom = next.size();
+			rateBefore = rate;
+			System.out.println("INFO: Autotuner resizing " + name(next) + " threads from " + changedFrom
+					+ " to " + size + ".");
+			next.resize(size);
+		}
+	}
+
+	/**
+	 * @return used share of the queue budget
+	 */
+	private static double fill(RecordQueue<?> queue) {
+		return queue.getMaxBytes() > 0 ? (double) queue.getBytes() / queue.getMaxBytes() : 0;
+	}
+
+	private static String percent(double share) {
+		return Math.round(share * 100) + "%";
+	}
+
+	private String name(WorkerPool pool) {
+		return pool == _parser.getPool() ? "parser" : "indexer";
+	}
+
+	/**
+	 * @return the configuration with the best throughput seen
+	 */
+	public String getStats() {
+		return "Autotuner settled on " + _bestParsers + " parser and " + _bestIndexers + " indexer threads ("
+				+ Math.round(Math.max(0, _bestRate)) + " docs/s), reuse them with -p " + _bestParsers
+				+ " -t " + _bestIndexers + ".";
+	}
+
+}
@@ -0,0 +1,201 @@
+package warcsearch;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchSearch evaluates many topics against one index
+ * topics are searched concurrently by a pool of threads sharing one searcher
+ * results are written as TREC run file
+ * (topic Q0 trecId rank score runTag)
+ */
+public class BatchSearch {
+	
+	/** default number of results per topic */
+	public static final int DEFAULT_DEPTH = 1000;
+	
+	/** default run tag */
+	public static final String DEFAULT_RUN_TAG = "warcsearch";
+	
+	/** indexer with the index to search */
+	private final Indexer _indexer;
+	
+	/** number of searching threads */
+	private final int _threadNo;
+	
+	/** number of results per topic */
+	private final int _depth;
+	
+	/** tag of the run in run file */
+	private final String _runTag;
+	
+	/** topic ids and queries */
+	private final List<String> _topicIds = new ArrayList<String>();
+	private final List<String> _queries = new ArrayList<String>();
+	
+	/** run lines and latency in ns of every topic */
+	private String[] _runs;
+	private long[] _latencies;
+	
+	/** wall time of the whole batch in ns */
+	private long _elapsed;
+	
+	/**
+	 * constructor
+	 * @param indexer indexer with the index to search
+	 * @param threadNo number of searching threads
+	 * @param depth number of results per topic
+	 * @param runTag tag of the run in run file
+	 */
+	public BatchSearch(Indexer indexer, int threadNo, int depth, String runTag) {
+		_indexer = indexer;
+		_threadNo = threadNo;
+		_depth = depth;
+		_runTag = runTag;
+	}
+	
+	/**
+	 * reads topics file
+	 * one topic per line, "id:query" or "id query",
+	 * empty lines and lines starting with # are skipped
+	 * @param topicsLoc path to topics file
+	 * @throws IOException
+	 */
+	public void readTopics(String topicsLoc) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(topicsLoc), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				int split = 0;
+				while (split < line.length() && line.charAt(split) != ':'
+						&& !Character.isWhitespace(line.charAt(split))) split++;
+				if (split == line.length()) {
+					System.err.println("Skipping topic without query: " + line);
+					continue;
+				}
+				_topicIds.add(line.substring(0, split));
+				_queries.add(line.substring(split + 1).trim());
+			}
+		} finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * searches all topics concurrently
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		int n = _queries.size();
+		_runs = new String[n];
+		_latencies = new long[n];
+		ExecutorService pool = Executors.newFixedThreadPool(_threadNo);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			pool.execute(new BatchSearchTask(i));
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		_elapsed = System.nanoTime() - startTime;
+	}
+	
+	/**
+	 * writes run lines of all topics in topic order
+	 * @param runLoc path to run file
+	 * @throws IOException
+	 */
+	public void writeRun(String runLoc) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(runLoc), "UTF-8"));
+		try {
+			for (String run: _runs) {
+				if (run != null) out.print(run);
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("There was a problem with writing " + runLoc + ".");
+	}
+	
+	/**
+	 * prints aggregate throughput and latency percentiles
+	 */
+	public void printStats() {
+		int n = _latencies.length;
+		if (n == 0) {
+			System.out.println("No topics searched.");
+			return;
+		}
+		long[] sorted = Arrays.copyOf(_latencies, n);
+		Arrays.sort(sorted);
+		double seconds = _elapsed / 1000000000.0;
+		System.out.println("Searched " + n + " topics in " + seconds + "s with " + _threadNo + " threads.");
+		System.out.println("Throughput " + (n / seconds) + " queries/s.");
+		System.out.println("Latency p50 " + percentile(sorted, 0.50) / 1000000.0 + "ms, p99 "
+				+ percentile(sorted, 0.99) / 1000000.0 + "ms, max " + sorted[n - 1] / 1000000.0 + "ms.");
+		if (_indexer.getCache() != null)
+			System.out.println(_indexer.getCache().getStats());
+	}
+	
+	/**
+	 * nearest-rank percentile
+	 * @param sorted sorted values
+	 * @param p percentile (0..1]
+	 * @return value
+	 */
+	private static long percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+	
+	/**
+	 * runnable BatchSearchTask searches one topic
+	 * and formats its run lines
+	 */
+	private class BatchSearchTask implements Runnable {
+		
+		private final int _topic;
+		
+		/**
+		 * constructor
+		 * @param topic index of the topic
+		 */
+		public BatchSearchTask(int topic) {
+			_topic = topic;
+		}
+		
+		/**
+		 * searches the topic
+		 */
+		@Override
+		public void run() {
+			long startTime = System.nanoTime();
+			ArrayList<Result> results = _indexer.search(_queries.get(_topic), _depth);
+			_latencies[_topic] = System.nanoTime() - startTime;
+			StringBuilder sb = new StringBuilder();
+			int rank = 0;
+			for (Result r: results) {
+				String docno = r.getDoc().get("trecId");
+				if (docno == null) docno = r.getDoc().get("recordId");
+				sb.append(_topicIds.get(_topic)).append(" Q0 ").append(docno).append(' ')
+					.append(++rank).append(' ').append(r.getScore()).append(' ').append(_runTag).append('\n');
+			}
+			_runs[_topic] = sb.toString();
+		}
+	
+	}
+
+}
@@ -0,0 +1,561 @@
+package warcsearch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * CaptureIndex is CDX-like sidecar of the index for exact lookups
+ * one line per indexed record - url, date, recordId, trecId, offset, length, file
+ * (tab separated, "-" for missing values), written three times sorted by url, record id
+ * and trec id, so every lookup is a binary search in memory mapped file
+ * and never touches lucene
+ * built from the committed index at the end of indexing, so it covers resumed,
+ * updated and deduplicated indexes the same way
+ * captures are streamed from the index in docID order and sorted externally -
+ * batches of RUN_CHARS are sorted in memory and spilled as runs, which are merged,
+ * so building needs bounded heap however big the index is
+ * thread safe for lookups
+ */
+public class CaptureIndex {
+
+	/** sidecar files in the index directory, all of them start with the prefix */
+	private static final String FILE_PREFIX = "captures-";
+	private static final String URL_FILE = FILE_PREFIX + "url.cdx";
+	private static final String RECORD_ID_FILE = FILE_PREFIX + "id.cdx";
+	private static final String TREC_ID_FILE = FILE_PREFIX + "trec.cdx";
+
+	/** columns of the line */
+	private static final int URL = 0;
+	private static final int DATE = 1;
+	private static final int RECORD_ID = 2;
+	private static final int TREC_ID = 3;
+	private static final int OFFSET = 4;
+	private static final int LENGTH = 5;
+	private static final int FILE = 6;
+
+	/** placeholder of missing value */
+	private static final String MISSING = "-";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** chars of captures sorted in memory at once, bigger indexes are sorted in runs on disk */
+	private static final long RUN_CHARS = 32L * 1024 * 1024;
+
+	/** maximum number of runs merged at once, more runs are merged in several passes */
+	private static final int MERGE_FANIN = 64;
+
+	/** stored fields read for the lines */
+	private static final Set<String> FIELDS = new HashSet<String>(Arrays.asList(
+			"targetUri", "date", "recordId", "trecId"));
+
+	/** mapped sidecar files */
+	private final MappedByteBuffer _byUrl;
+	private final MappedByteBuffer _byRecordId;
+	private final MappedByteBuffer _byTrecId;
+
+	/**
+	 * one capture - position of one record in archive
+	 */
+	public static class Capture {
+
+		private final String[] _values;
+
+		private Capture(String[] values) {
+			_values = values;
+		}
+
+		/**
+		 * @return the WARC-Target-URI, null if missing
+		 */
+		public String getUrl() {
+			return get(URL);
+		}
+
+		/**
+		 * @return the WARC-Date, null if missing
+		 */
+		public String getDate() {
+			return get(DATE);
+		}
+
+		/**
+		 * @return the WARC-Record-ID, null if missing
+		 */
+		public String getRecordId() {
+			return get(RECORD_ID);
+		}
+
+		/**
+		 * @return the WARC-TREC-ID, null if missing
+		 */
+		public String getTrecId() {
+			return get(TREC_ID);
+		}
+
+		/**
+		 * @return path of archive file, null if unknown
+		 */
+		public String getSourceFile() {
+			return get(FILE);
+		}
+
+		/**
+		 * @return offset of the record in archive, -1 if unknown
+		 */
+		public long getOffset() {
+			return _values[OFFSET].equals(MISSING) ? -1 : Long.parseLong(_values[OFFSET]);
+		}
+
+		/**
+		 * @return length of the record in archive, -1 if unknown
+		 */
+		public long getLength() {
+			return _values[LENGTH].equals(MISSING) ? -1 : Long.parseLong(_values[LENGTH]);
+		}
+
+		/**
+		 * reads the original record from the archive
+		 * @return the record with its payload
+		 * @throws IOException when the position is unknown or the archive changed
+		 */
+		public ExtendedWarcRecord getRecord() throws IOException {
+			if (getSourceFile() == null)
+				throw new IOException("There is no archive position of the capture.");
+			return WebArchive.readRecord(new File(getSourceFile()), getOffset(), getLength());
+		}
+
+		private String get(int column) {
+			return _values[column].equals(MISSING) ? null : _values[column];
+		}
+
+		/**
+		 * @return the CDX line
+		 */
+		public String toString() {
+			return join(_values);
+		}
+
+	}
+
+	/**
+	 * constructor
+	 * maps the sidecar files of the index
+	 * @param indexDir directory of the index
+	 * @throws IOException when there is no capture index
+	 */
+	public CaptureIndex(File indexDir) throws IOException {
+		_byUrl = map(new File(indexDir, URL_FILE));
+		_byRecordId = map(new File(indexDir, RECORD_ID_FILE));
+		_byTrecId = map(new File(indexDir, TREC_ID_FILE));
+	}
+
+	/**
+	 * @param indexDir directory of the index
+	 * @return true if the index has capture index
+	 */
+	public static boolean exists(File indexDir) {
+		return new File(indexDir, URL_FILE).isFile() && new File(indexDir, RECORD_ID_FILE).isFile()
+				&& new File(indexDir, TREC_ID_FILE).isFile();
+	}
+
+	/**
+	 * @param name name of file in the index directory
+	 * @return true if the file belongs to the capture index
+	 */
+	public static boolean isSidecar(String name) {
+		return name.startsWith(FILE_PREFIX);
+	}
+
+	/**
+	 * maps whole file read only, the mapping outlives the channel
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() > Integer.MAX_VALUE)
+				throw new IOException("Capture index " + file + " is too big to map.");
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * writes capture index of all live documents of the index
+	 * files are written aside and renamed, so readers never see half of them
+	 * @param reader reader of the whole index (MultiReader of shards too)
+	 * @param indexDir directory of the index
+	 * @return number of captures
+	 * @throws IOException
+	 */
+	public static int build(IndexReader reader, File indexDir) throws IOException {
+		return build(reader, indexDir, RUN_CHARS);
+	}
+
+	/**
+	 * writes capture index, sorting at most runChars of captures in memory at once
+	 */
+	static int build(IndexReader reader, File indexDir, long runChars) throws IOException {
+		SidecarWriter[] writers = new SidecarWriter[] {
+			new SidecarWriter(URL, new File(indexDir, URL_FILE)),
+			new SidecarWriter(RECORD_ID, new File(indexDir, RECORD_ID_FILE)),
+			new SidecarWriter(TREC_ID, new File(indexDir, TREC_ID_FILE))
+		};
+		int n = 0;
+		try {
+			List<String[]> batch = new ArrayList<String[]>();
+			long chars = 0;
+			BytesRef file = new BytesRef();
+			for (AtomicReaderContext leaf: reader.leaves()) {
+				AtomicReader segment = leaf.reader();
+				Bits live = segment.getLiveDocs();
+				SortedDocValues files = segment.getSortedDocValues(Indexer.SOURCE_FILE_FIELD);
+				NumericDocValues offsets = segment.getNumericDocValues(Indexer.OFFSET_FIELD);
+				NumericDocValues lengths = segment.getNumericDocValues(Indexer.LENGTH_FIELD);
+				for (int doc = 0; doc < segment.maxDoc(); doc++) {
+					if (live != null && !live.get(doc)) continue;
+					Document d = segment.document(doc, FIELDS);
+					String[] values = new String[FILE + 1];
+					values[URL] = clean(d.get("targetUri"));
+					values[DATE] = clean(d.get("date"));
+					values[RECORD_ID] = clean(d.get("recordId"));
+					values[TREC_ID] = clean(d.get("trecId"));
+					values[OFFSET] = values[LENGTH] = values[FILE] = MISSING;
+					if (files != null && offsets != null && lengths != null && files.getOrd(doc) >= 0) {
+						files.get(doc, file);
+						values[FILE] = clean(file.utf8ToString());
+						values[OFFSET] = String.valueOf(offsets.get(doc));
+						values[LENGTH] = String.valueOf(lengths.get(doc));
+					}
+					batch.add(values);
+					n++;
+					for (String value: values)
+						chars += value.length() + 1;
+					if (chars >= runChars) {
+						for (SidecarWriter writer: writers)
+							writer.spill(batch);
+						batch.clear();
+						chars = 0;
+					}
+				}
+			}
+			for (SidecarWriter writer: writers)
+				writer.finish(batch);
+		} finally {
+			for (SidecarWriter writer: writers)
+				writer.deleteRuns();
+		}
+		return n;
+	}
+
+	/**
+	 * @return value safe for tab separated line
+	 */
+	private static String clean(String value) {
+		if (value == null || value.length() == 0) return MISSING;
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**
+	 * @return tab separated line of the values
+	 */
+	private static String join(String[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append('\t');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * external sort of captures into one sidecar file
+	 * ordered by the key column, then by url and date, captures with the same keys
+	 * stay in docID order
+	 */
+	private static class SidecarWriter {
+
+		private final File _file;
+		private final Comparator<String[]> _order;
+
+		/** sorted runs spilled so far, in docID order */
+		private final List<File> _runs = new ArrayList<File>();
+		private int _runNo;
+
+		/**
+		 * @param column key column
+		 * @param file sidecar file
+		 */
+		private SidecarWriter(final int column, File file) {
+			_file = file;
+			_order = new Comparator<String[]>() {
+				@Override
+				public int compare(String[] a, String[] b) {
+					int c = a[column].compareTo(b[column]);
+					if (c == 0) c = a[URL].compareTo(b[URL]);
+					if (c == 0) c = a[DATE].compareTo(b[DATE]);
+					return c;
+				}
+			};
+		}
+
+		/**
+		 * sorts the batch and writes it as a run, the batch is reordered
+		 */
+		private void spill(List<String[]> batch) throws IOException {
+			// prefixed, so runs left by a crash are cleaned up with the index
+			File run = new File(_file.getParentFile(), _file.getName() + "." + (_runNo++) + ".run");
+			_runs.add(run);
+			Collections.sort(batch, _order);
+			write(batch, run);
+		}
+
+		/**
+		 * writes the sidecar of the last batch and the runs spilled before it
+		 * the sidecar is written aside and renamed
+		 */
+		private void finish(List<String[]> batch) throws IOException {
+			File tmp = new File(_file.getPath() + ".tmp");
+			if (_runs.isEmpty()) {
+				Collections.sort(batch, _order);
+				write(batch, tmp);
+			} else {
+				if (!batch.isEmpty()) spill(batch);
+				while (_runs.size() > MERGE_FANIN) {
+					// merges consecutive runs, so ties stay in docID order
+					List<File> merged = new ArrayList<File>();
+					for (int i = 0; i < _runs.size(); i += MERGE_FANIN) {
+						List<File> group = _runs.subList(i, Math.min(i + MERGE_FANIN, _runs.size()));
+						File run = new File(_file.getParentFile(), _file.getName() + "." + (_runNo++) + ".run");
+						merged.add(run);
+						merge(group, run);
+						for (File f: group)
+							f.delete();
+					}
+					_runs.clear();
+					_runs.addAll(merged);
+				}
+				merge(_runs, tmp);
+			}
+			if (_file.exists() && !_file.delete() || !tmp.renameTo(_file))
+				throw new IOException("There was a problem with writing " + _file + ".");
+		}
+
+		/**
+		 * deletes runs left behind
+		 */
+		private void deleteRuns() {
+			for (File run: _runs)
+				run.delete();
+			_runs.clear();
+		}
+
+		/**
+		 * writes the captures as lines
+		 */
+		private static void write(List<String[]> captures, File file) throws IOException {
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+			try {
+				for (String[] values: captures) {
+					out.write(join(values));
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * merges sorted runs into the file, equal lines are taken from earlier runs first
+		 */
+		private void merge(List<File> runs, File file) throws IOException {
+			PriorityQueue<Head> heads = new PriorityQueue<Head>(runs.size(), new Comparator<Head>() {
+				@Override
+				public int compare(Head a, Head b) {
+					int c = _order.compare(a._values, b._values);
+					return c != 0 ? c : a._run - b._run;
+				}
+			});
+			List<BufferedReader> readers = new ArrayList<BufferedReader>();
+			try {
+				for (int i = 0; i < runs.size(); i++) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(runs.get(i)), UTF8));
+					readers.add(in);
+					Head head = new Head(i, in);
+					if (head.next()) heads.add(head);
+				}
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+				try {
+					Head head;
+					while ((head = heads.poll()) != null) {
+						out.write(head._line);
+						out.write('\n');
+						if (head.next()) heads.add(head);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				for (BufferedReader in: readers)
+					in.close();
+			}
+		}
+
+	}
+
+	/**
+	 * current line of a run being merged
+	 */
+	private static class Head {
+
+		private final int _run;
+		private final BufferedReader _in;
+		private String _line;
+		private String[] _values;
+
+		private Head(int run, BufferedReader in) {
+			_run = run;
+			_in = in;
+		}
+
+		/**
+		 * @return false at the end of the run
+		 */
+		private boolean next() throws IOException {
+			_line = _in.readLine();
+			if (_line == null) return false;
+			_values = _line.split("\t", -1);
+			return true;
+		}
+
+	}
+
+	/**
+	 * @param url exact WARC-Target-URI
+	 * @return captures of the url sorted by date
+	 */
+	public List<Capture> lookupUrl(String url) {
+		return lookup(_byUrl, URL, url, false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param prefix start of WARC-Target-URI
+	 * @param max maximum number of captures
+	 * @return captures of urls starting with the prefix sorted by url and date
+	 */
+	public List<Capture> lookupUrlPrefix(String prefix, int max) {
+		return lookup(_byUrl, URL, prefix, true, max);
+	}
+
+	/**
+	 * @param recordId WARC-Record-ID
+	 * @return captures with the record id (one unless ids collide)
+	 */
+	public List<Capture> lookupRecordId(String recordId) {
+		return lookup(_byRecordId, RECORD_ID, recordId, false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param trecId WARC-TREC-ID
+	 * @return captures with the trec id
+	 */
+	public List<Capture> lookupTrecId(String trecId) {
+		return lookup(_byTrecId, TREC_ID, trecId, false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * binary search for the first line with key not less than the target,
+	 * then reads the matching lines after it
+	 * @param buf mapped sidecar file
+	 * @param column key column
+	 * @param target searched key or prefix
+	 * @param prefix true for prefix match
+	 * @param max maximum number of captures
+	 * @return matching captures
+	 */
+	private static List<Capture> lookup(ByteBuffer buf, int column, String target, boolean prefix, int max) {
+		List<Capture> captures = new ArrayList<Capture>();
+		if (target == null || target.length() == 0 && !prefix) return captures;
+		// lo is always a line start, the first matching line is in [lo, hi]
+		int lo = 0;
+		int hi = buf.limit();
+		while (lo < hi) {
+			int mid = lo + (hi - lo) / 2;
+			int start = mid;
+			while (start > lo && buf.get(start - 1) != '\n') start--;
+			if (column(line(buf, start), column).compareTo(target) < 0) {
+				lo = lineEnd(buf, start);
+			} else {
+				hi = start;
+			}
+		}
+		for (int pos = lo; pos < buf.limit() && captures.size() < max; pos = lineEnd(buf, pos)) {
+			String[] values = line(buf, pos).split("\t", -1);
+			if (values.length <= FILE) break;
+			if (prefix ? !values[column].startsWith(target) : !values[column].equals(target)) break;
+			captures.add(new Capture(values));
+		}
+		return captures;
+	}
+
+	/**
+	 * @return position after the end of line starting at pos
+	 */
+	private static int lineEnd(ByteBuffer buf, int pos) {
+		while (pos < buf.limit() && buf.get(pos) != '\n') pos++;
+		return Math.min(pos + 1, buf.limit());
+	}
+
+	/**
+	 * decodes line starting at pos without its end
+	 */
+	private static String line(ByteBuffer buf, int pos) {
+		int end = lineEnd(buf, pos);
+		if (end > pos && buf.get(end - 1) == '\n') end--;
+		ByteBuffer line = buf.duplicate();
+		line.limit(end);
+		line.position(pos);
+		return UTF8.decode(line).toString();
+	}
+
+	/**
+	 * @return value of the column of tab separated line
+	 */
+	private static String column(String line, int column) {
+		int start = 0;
+		for (int i = 0; i < column; i++) {
+			start = line.indexOf('\t', start) + 1;
+			if (start == 0) return "";
+		}
+		int end = line.indexOf('\t', start);
+		return end < 0 ? line.substring(start) : line.substring(start, end);
+	}
+
+}
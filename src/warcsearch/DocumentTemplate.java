@@ -0,0 +1,113 @@
+package warcsearch;
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * DocumentTemplate is reusable Lucene Document of PageRecords
+ * Document and its Fields are created once, their values are reset for every record,
+ * so indexing allocates nothing per document here
+ * the document is valid until the next fill(), IndexWriter is done with it
+ * when addDocument/updateDocument returns
+ * not thread safe, every indexing thread should have its own template
+ */
+public class DocumentTemplate {
+
+	private final Document _doc = new Document();
+
+	/** text is streamed from the record buffer through reusable reader */
+	private final CharBufferReader _reader = new CharBufferReader();
+	private final Field _text = new TextField("text", _reader);
+
+	private final Field _duplicateOf = new StringField("duplicateOf", "", Field.Store.YES);
+	private final Field _date = new StringField("date", "", Field.Store.YES);
+	private final Field _recordId = new StringField("recordId", "", Field.Store.YES);
+	private final Field _targetUri = new StringField("targetUri", "", Field.Store.YES);
+	private final Field _trecId = new StringField("trecId", "", Field.Store.YES);
+
+	/** position of the record in archive */
+	private final BytesRef _file = new BytesRef();
+	private final Field _sourceFile = new SortedDocValuesField(Indexer.SOURCE_FILE_FIELD, _file);
+	private final Field _offset = new NumericDocValuesField(Indexer.OFFSET_FIELD, 0);
+	private final Field _length = new NumericDocValuesField(Indexer.LENGTH_FIELD, 0);
+
+	/**
+	 * fills the template with the record
+	 * headers missing in the record are left out
+	 * the text is not stored, search results read it back from the archive
+	 * through the position of the record kept in doc values
+	 * near-duplicate is just a pointer to its canonical page, its text is not indexed
+	 * @param rec the record
+	 * @return the reused document
+	 */
+	public Document fill(PageRecord rec) {
+		_doc.getFields().clear();
+		if (rec.getDuplicateOf() == null) {
+			_reader.reset(rec.getText());
+			_doc.add(_text);
+		} else {
+			add(_duplicateOf, rec.getDuplicateOf());
+		}
+		add(_date, rec.getDate());
+		add(_recordId, rec.getRecordId());
+		add(_targetUri, rec.getTargetUri());
+		add(_trecId, rec.getTrecId());
+		if (rec.getSourceFile() != null) {
+			_file.copyChars(rec.getSourceFile());
+			_sourceFile.setBytesValue(_file);
+			_offset.setLongValue(rec.getOffset());
+			_length.setLongValue(rec.getLength());
+			_doc.add(_sourceFile);
+			_doc.add(_offset);
+			_doc.add(_length);
+		}
+		return _doc;
+	}
+
+	/**
+	 * adds string field if there is a value for it
+	 */
+	private void add(Field field, String value) {
+		if (value != null) {
+			field.setStringValue(value);
+			_doc.add(field);
+		}
+	}
+
+	/**
+	 * Reader over CharBuffer that can be pointed to the next buffer
+	 * closing it (the tokenizer does) just drops the buffer
+	 */
+	private static class CharBufferReader extends Reader {
+
+		private static final CharBuffer EMPTY = CharBuffer.allocate(0);
+
+		private CharBuffer _buffer = EMPTY;
+
+		private void reset(CharBuffer buffer) {
+			_buffer = buffer;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (!_buffer.hasRemaining()) return -1;
+			int n = Math.min(len, _buffer.remaining());
+			_buffer.get(cbuf, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() {
+			_buffer = EMPTY;
+		}
+
+	}
+
+}
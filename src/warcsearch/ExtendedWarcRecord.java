@@ -2,125 +2,249 @@ package warcsearch;
 
 import org.jsoup.Jsoup;
 import org.jsoup.select.Elements;
-import org.jwat.warc.WarcRecord;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import java.io.InputStream;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 /**
- * extends the WarcRecord capability
- * WarcRecord misses parsing html payload,
- * retrieving page texts from html pages,
- * copy constructor for deep copies,
- * basically it's crap.. 
- * life is too short to write custom warc parsers though
+ * WARC record as read by MappedWarcReader
+ * holds the headers we index and the payload slice,
+ * parses html payload into PageRecord with the page text
  * TODO - store webpage titles
  */
 public class ExtendedWarcRecord {
 	
-	/** original WarcRecord */
-	private WarcRecord _record;
-	
 	/** needed warc data */
-	private String _payloadContent;
+	private String _type;
+	private ByteBuffer _payload;
 	private String _recordId;
 	private String _targetUri;
 	private String _date;
 	private String _trecId;
-	private org.jsoup.nodes.Document _htmlDoc;
-	private boolean _terminator;
+	private HttpResponseHeader _httpHeader;
+	
+	/** archive file the record comes from */
+	private String _sourceFile;
+	
+	/** byte range of IndexProgress the record was read from */
+	private int _range = -1;
+	
+	/** position of the record in archive */
+	private long _offset;
+	private long _length;
 	
 	/**
-	 * empty constructor
-	 * used to created terminator record
+	 * constructor
+	 * only keeps the headers and the raw payload slice,
+	 * runs on the reading thread so it has to stay cheap
+	 * the heavy stuff is done later in parse()
+	 * @param type WARC-Type header
+	 * @param recordId WARC-Record-ID header
+	 * @param targetUri WARC-Target-URI header
+	 * @param date WARC-Date header
+	 * @param trecId WARC-TREC-ID header
+	 * @param payload record block, not copied
+	 * @param offset offset of the record in archive
+	 * @param length length of the record in archive
 	 */
-	public ExtendedWarcRecord() {
-		_terminator = true;
+	public ExtendedWarcRecord(String type, String recordId, String targetUri, String date, String trecId,
+			ByteBuffer payload, long offset, long length) {
+		_type = type;
+		_recordId = recordId;
+		_targetUri = targetUri;
+		_date = date;
+		_trecId = trecId;
+		_payload = payload;
+		_offset = offset;
+		_length = length;
 	}
 	
 	/**
-	 * constructor
-	 * prepares the object data
-	 * @param record original WarcRecord
+	 * parses http header of the response at the byte level
+	 * and cuts the payload down to the response body
+	 * cheap enough for the reading thread, so non html responses
+	 * are dropped before anything gets decoded
+	 * @return true if the record is successful (2xx) html response worth parsing
 	 */
-	public ExtendedWarcRecord(WarcRecord record){
-		_record = record;
-		_terminator = false;
-		_payloadContent = convertStreamToString(record.getPayloadContent());
-		_recordId = record.getHeader("WARC-Record-ID").value;
-		_targetUri = record.getHeader("WARC-Target-URI").value;
-		_date = record.getHeader("WARC-Date").value;
-		_trecId = record.getHeader("WARC-TREC-ID").value;
-		_htmlDoc = Jsoup.parse(_payloadContent); // <--
+	public boolean readHttpHeader() {
+		_httpHeader = HttpResponseHeader.parse(_payload);
+		if (_httpHeader == null) return false;
+		ByteBuffer body = _payload.duplicate();
+		body.position(body.position() + _httpHeader.getBodyOffset());
+		_payload = body.slice();
+		return _httpHeader.isSuccess() && _httpHeader.isHtml(_payload);
 	}
 	
 	/**
-	 * returns true if the record is terminator
-	 * indicates the last parsed record
-	 * for consumer to end itself
-	 * @return the _terminator
+	 * cuts the payload down to the cap, so huge pages are never decoded whole
+	 * heap payload (inflated gzip member) is copied, so the rest of it can be freed
+	 * @param maxBytes cap of payload bytes, 0 for no cap
+	 * @return number of bytes cut off
 	 */
-	public boolean isTerminator() {
-		return _terminator;
+	public long truncate(long maxBytes) {
+		if (maxBytes <= 0 || _payload.remaining() <= maxBytes) return 0;
+		long dropped = _payload.remaining() - maxBytes;
+		ByteBuffer body = _payload.duplicate();
+		body.limit(body.position() + (int) maxBytes);
+		if (body.hasArray()) {
+			ByteBuffer copy = ByteBuffer.allocate((int) maxBytes);
+			copy.put(body);
+			copy.flip();
+			_payload = copy;
+		} else {
+			_payload = body.slice();
+		}
+		return dropped;
 	}
-
+	
 	/**
-	 * returns raw html _payloadContent
-	 * @return _payloadContent as a String
+	 * decodes the response body and extracts body text from the html
+	 * body is decoded with charset declared in http header or meta tag, utf-8 otherwise
+	 * runs in the Parser stage, not on the reading thread
+	 * the payload is released, decoded html and DOM are not kept,
+	 * with the streaming extractor neither the html nor the text is copied into String
+	 * @param useJsoup build jsoup DOM instead of using streaming HtmlTextExtractor
+	 *        (slower, kept for comparison)
+	 * @return compact record for indexing
 	 */
-	public String getPayloadContent() {
-		return _payloadContent;
+	public PageRecord parse(boolean useJsoup) {
+		return parse(useJsoup, new HtmlTextExtractor());
 	}
 	
 	/**
-	 * returns the content of this warc record
-	 * as indexable Lucene Document
-	 * @return doc LuceneDocument
+	 * decodes the response body and extracts body text from the html
+	 * with buffers of parsing thread
+	 * @param useJsoup build jsoup DOM instead of using streaming HtmlTextExtractor
+	 * @param extractor extractor with reusable buffers of the calling thread
+	 * @return compact record for indexing
 	 */
-	public Document getLuceneDocument() {
-		Document doc = new Document();
-		doc.add(new TextField("text", getHtmlBodyText(), Field.Store.YES));
-		doc.add(new StringField("date", _date, Field.Store.YES));
-		doc.add(new StringField("recordId", _recordId, Field.Store.YES));
-		doc.add(new StringField("targetUri", _targetUri, Field.Store.YES));
-		doc.add(new StringField("trecId", _trecId, Field.Store.YES));
-		return doc;
+	public PageRecord parse(boolean useJsoup, HtmlTextExtractor extractor) {
+		Charset charset = _httpHeader != null ? _httpHeader.getCharset(_payload) : HttpResponseHeader.DEFAULT_CHARSET;
+		CharBuffer html = extractor.decode(_payload, charset);
+		_payload = null;
+		CharBuffer text;
+		if (useJsoup) {
+			Elements bodies = Jsoup.parse(html.toString()).getElementsByTag("body"); // <--
+			text = CharBuffer.wrap((bodies.size() > 0 ? bodies.get(0).text() : "").toCharArray());
+		} else {
+			text = extractor.extractCopy(html);
+		}
+		PageRecord page = new PageRecord(text, _recordId, _targetUri, _date, _trecId, _sourceFile, _offset, _length);
+		page.setRange(_range);
+		return page;
 	}
 	
 	/**
-	 * returns parsed text from page body
-	 * @return bodytext String
+	 * returns raw payload bytes (response body after readHttpHeader())
+	 * available until parse()
+	 * @return read-only view of the payload
 	 */
-	public String getHtmlBodyText() {
-		Elements bodies = _htmlDoc.getElementsByTag("body");
-		String bodyText = "";
-		if (bodies.size() > 0) {
-			bodyText = bodies.get(0).text();
-		}
-		return bodyText;
+	public ByteBuffer getPayload() {
+		return _payload.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * size of the record while it waits for parsing
+	 * @return payload size in bytes
+	 */
+	public long getSize() {
+		return _payload != null ? _payload.remaining() : 0;
+	}
+	
+	/**
+	 * @return the WARC-Type
+	 */
+	public String getType() {
+		return _type;
+	}
+	
+	/**
+	 * @return parsed http header, null before readHttpHeader() or if there is none
+	 */
+	public HttpResponseHeader getHttpHeader() {
+		return _httpHeader;
+	}
+	
+	/**
+	 * @return the WARC-Record-ID
+	 */
+	public String getRecordId() {
+		return _recordId;
+	}
+	
+	/**
+	 * @return the WARC-Target-URI
+	 */
+	public String getTargetUri() {
+		return _targetUri;
+	}
+	
+	/**
+	 * @return the WARC-Date
+	 */
+	public String getDate() {
+		return _date;
+	}
+	
+	/**
+	 * @return the WARC-TREC-ID
+	 */
+	public String getTrecId() {
+		return _trecId;
+	}
+	
+	/**
+	 * @return path of archive file the record comes from
+	 */
+	public String getSourceFile() {
+		return _sourceFile;
+	}
+	
+	/**
+	 * @param sourceFile path of archive file the record comes from
+	 */
+	public void setSourceFile(String sourceFile) {
+		_sourceFile = sourceFile;
+	}
+	
+	/**
+	 * @return id of the byte range the record was read from, -1 if progress is not tracked
+	 */
+	public int getRange() {
+		return _range;
 	}
 	
 	/**
-	 * converts InputStream into String
-	 * thx to http://stackoverflow.com/a/5445161/1893452
-	 * it's a bit wtf though
-	 * @param is original java.io InputStream
-	 * @return same data as java String
+	 * @param range id of the byte range the record was read from
 	 */
-	private static String convertStreamToString(InputStream is) {
-        Scanner s = new Scanner(is).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
-    }
+	public void setRange(int range) {
+		_range = range;
+	}
 	
 	/**
-	 * returns the original WarcRecord
-	 * @return the _record
+	 * @return offset of the record in archive
 	 */
-	public WarcRecord getRecord() {
-		return _record;
+	public long getOffset() {
+		return _offset;
 	}
 	
+	/**
+	 * @return length of the record in archive
+	 */
+	public long getLength() {
+		return _length;
+	}
+	
+	/**
+	 * sets position of the record in archive
+	 * used when the record was not parsed from the archive bytes directly
+	 * (e.g. inflated gzip member)
+	 * @param offset offset of the record in archive
+	 * @param length length of the record in archive
+	 */
+	public void setPosition(long offset, long length) {
+		_offset = offset;
+		_length = length;
+	}
+
 }
@@ -0,0 +1,328 @@
+package warcsearch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * GzipWarcReader reads WARC records from one byte range of .warc.gz archive
+ * every record of .warc.gz is its own gzip member, so the members
+ * can be inflated independently and ranges can be read in parallel
+ * member boundaries are either found by scanning for gzip magic bytes
+ * (candidates are verified by inflating the start of the member)
+ * or read from a sidecar file with member offsets (archive.warc.gz.offsets)
+ * not thread safe, every reading thread should have its own reader
+ */
+public class GzipWarcReader implements WarcRecordReader {
+
+	/** suffix of sidecar file with member offsets, one decimal offset per line */
+	public static final String OFFSETS_SUFFIX = ".offsets";
+
+	/** size of compressed chunks fed to inflater */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** initial size of inflated member buffer */
+	private static final int OUTPUT_SIZE = 64 * 1024;
+	
+	/** largest inflated member buffer, arrays of Integer.MAX_VALUE exceed the VM limit */
+	private static final int MAX_OUTPUT_SIZE = Integer.MAX_VALUE - 8;
+
+	/** gzip format constants (RFC 1952) */
+	private static final int GZIP_ID1 = 0x1f;
+	private static final int GZIP_ID2 = 0x8b;
+	private static final int GZIP_DEFLATE = 8;
+	private static final int GZIP_HEADER_SIZE = 10;
+	private static final int GZIP_TRAILER_SIZE = 8;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	/** inflated member has to start with this */
+	private static final byte[] RECORD_START = "WARC/".getBytes();
+
+	/** archive channel */
+	private final FileChannel _channel;
+
+	/** length of the archive */
+	private final long _length;
+
+	/** members starting at or after this offset are not read */
+	private final long _end;
+
+	/** file offset of the next member */
+	private long _pos;
+
+	/** raw inflater (gzip header and trailer are handled here) and its input */
+	private final Inflater _inflater = new Inflater(true);
+	private final byte[] _chunk = new byte[CHUNK_SIZE];
+
+	/** records of already inflated member (usually just one) */
+	private final LinkedList<ExtendedWarcRecord> _pending = new LinkedList<ExtendedWarcRecord>();
+
+	/** inflated bytes of one member and file offset right after it */
+	private static class Member {
+		private final byte[] _data;
+		private final int _size;
+		private final long _end;
+
+		private Member(byte[] data, int size, long end) {
+			_data = data;
+			_size = size;
+			_end = end;
+		}
+	}
+
+	/**
+	 * constructor
+	 * @param channel opened archive channel
+	 * @param start offset of the first member to read
+	 * @param end members starting at or after this offset are left for others
+	 * @throws IOException
+	 */
+	public GzipWarcReader(FileChannel channel, long start, long end) throws IOException {
+		_channel = channel;
+		_length = channel.size();
+		_end = Math.min(end, _length);
+		_pos = start;
+	}
+
+	/**
+	 * reads next record of the range
+	 * inflates next member if needed
+	 * the inflater is released at the end of the range and when reading fails,
+	 * callers drop the reader then, its native zlib memory must not wait for finalization
+	 * @return the record or null if there are no more records in range
+	 * @throws IOException when the archive is broken
+	 */
+	@Override
+	public ExtendedWarcRecord next() throws IOException {
+		try {
+			while (_pending.isEmpty()) {
+				if (_pos >= _end) {
+					close();
+					return null;
+				}
+				long memberStart = _pos;
+				Member member = inflate(memberStart, -1);
+				_pos = member._end;
+				ByteBuffer buf = ByteBuffer.wrap(member._data, 0, member._size);
+				ExtendedWarcRecord rec;
+				while ((rec = MappedWarcReader.parseRecord(buf, 0)) != null) {
+					rec.setPosition(memberStart, member._end - memberStart);
+					_pending.add(rec);
+				}
+				if (!MappedWarcReader.isBlank(buf))
+					throw new IOException("Truncated WARC record in gzip member at offset " + memberStart + ".");
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		return _pending.removeFirst();
+	}
+
+	/**
+	 * releases the inflater, the reader can not be used afterwards
+	 */
+	public void close() {
+		_inflater.end();
+	}
+
+	/**
+	 * inflates gzip member
+	 * @param start file offset of the member
+	 * @param maxOutput stop after inflating this many bytes, -1 for whole member
+	 * @return inflated member
+	 * @throws IOException when there is no valid member at the offset
+	 *         or it inflates to more than a buffer can hold (2GB)
+	 */
+	private Member inflate(long start, int maxOutput) throws IOException {
+		_inflater.reset();
+		long filePos = start;
+		int n = read(filePos);
+		int header = headerLength(_chunk, n, start);
+		filePos += n;
+		_inflater.setInput(_chunk, header, n - header);
+		byte[] out = new byte[maxOutput > 0 ? maxOutput : OUTPUT_SIZE];
+		int size = 0;
+		try {
+			while (!_inflater.finished()) {
+				if (size == out.length) {
+					if (maxOutput > 0) break;
+					if (out.length == MAX_OUTPUT_SIZE)
+						throw new IOException("Gzip member at offset " + start
+								+ " inflates to more than 2GB, records over 2GB are not supported.");
+					out = Arrays.copyOf(out, (int) Math.min(MAX_OUTPUT_SIZE, out.length * 2L));
+				}
+				int inflated = _inflater.inflate(out, size, out.length - size);
+				size += inflated;
+				if (inflated == 0) {
+					if (_inflater.needsInput()) {
+						n = read(filePos);
+						if (n <= 0)
+							throw new IOException("Truncated gzip member at offset " + start + ".");
+						filePos += n;
+						_inflater.setInput(_chunk, 0, n);
+					} else if (_inflater.needsDictionary()) {
+						throw new IOException("Unsupported gzip member at offset " + start + ".");
+					}
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Broken gzip member at offset " + start + ".", e);
+		}
+		return new Member(out, size, filePos - _inflater.getRemaining() + GZIP_TRAILER_SIZE);
+	}
+
+	/**
+	 * reads chunk of compressed data
+	 * @param filePos file offset to read from
+	 * @return number of bytes read into _chunk, 0 at the end of file
+	 * @throws IOException
+	 */
+	private int read(long filePos) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(_chunk);
+		while (buf.hasRemaining()) {
+			if (_channel.read(buf, filePos + buf.position()) < 0) break;
+		}
+		return buf.position();
+	}
+
+	/**
+	 * parses gzip member header
+	 * @param buf bytes starting with the header
+	 * @param n number of valid bytes
+	 * @param start file offset of the member for error messages
+	 * @return length of the header
+	 * @throws IOException when there is no gzip header
+	 */
+	private static int headerLength(byte[] buf, int n, long start) throws IOException {
+		if (n < GZIP_HEADER_SIZE || (buf[0] & 0xff) != GZIP_ID1 || (buf[1] & 0xff) != GZIP_ID2
+				|| buf[2] != GZIP_DEFLATE)
+			throw new IOException("No gzip member at offset " + start + ".");
+		int flags = buf[3] & 0xff;
+		int i = GZIP_HEADER_SIZE;
+		if ((flags & FEXTRA) != 0 && i + 2 <= n)
+			i += 2 + ((buf[i] & 0xff) | (buf[i + 1] & 0xff) << 8);
+		if ((flags & FNAME) != 0) {
+			while (i < n && buf[i] != 0) i++;
+			i++;
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (i < n && buf[i] != 0) i++;
+			i++;
+		}
+		if ((flags & FHCRC) != 0)
+			i += 2;
+		if (i > n)
+			throw new IOException("Too long gzip header at offset " + start + ".");
+		return i;
+	}
+
+	/**
+	 * checks whether there is a gzip member with WARC record at given offset
+	 * @param start file offset of the candidate
+	 * @return true if the member inflates to the start of a WARC record
+	 */
+	private boolean isRecordMember(long start) {
+		try {
+			Member member = inflate(start, RECORD_START.length);
+			if (member._size < RECORD_START.length) return false;
+			for (int i = 0; i < RECORD_START.length; i++) {
+				if (member._data[i] != RECORD_START[i]) return false;
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * checks gzip magic bytes at the start of the archive
+	 * @param channel opened archive channel
+	 * @return true if the archive is gzipped
+	 * @throws IOException
+	 */
+	public static boolean isGzip(FileChannel channel) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(2);
+		while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0);
+		return buf.position() == 2 && (buf.get(0) & 0xff) == GZIP_ID1 && (buf.get(1) & 0xff) == GZIP_ID2;
+	}
+
+	/**
+	 * finds the first member with WARC record at or after given position
+	 * @param channel opened archive channel
+	 * @param from position to search from
+	 * @return offset of the member or length of the archive if there is none
+	 * @throws IOException
+	 */
+	public static long findMemberStart(FileChannel channel, long from) throws IOException {
+		long length = channel.size();
+		if (from == 0) return 0;
+		GzipWarcReader probe = new GzipWarcReader(channel, from, length);
+		try {
+			byte[] buf = new byte[CHUNK_SIZE];
+			long pos = from;
+			while (pos < length) {
+				ByteBuffer bb = ByteBuffer.wrap(buf);
+				while (bb.hasRemaining() && channel.read(bb, pos + bb.position()) >= 0);
+				int n = bb.position();
+				if (n < 3) break;
+				for (int i = 0; i + 2 < n; i++) {
+					if ((buf[i] & 0xff) == GZIP_ID1 && (buf[i + 1] & 0xff) == GZIP_ID2 && buf[i + 2] == GZIP_DEFLATE
+							&& probe.isRecordMember(pos + i))
+						return pos + i;
+				}
+				// overlap the chunks so no magic is cut in half
+				pos += n - 2;
+			}
+			return length;
+		} finally {
+			probe.close();
+		}
+	}
+
+	/**
+	 * reads member offsets from sidecar file if there is one
+	 * @param archive the archive
+	 * @return sorted member offsets or null if there is no sidecar file
+	 * @throws IOException
+	 */
+	public static long[] readOffsets(File archive) throws IOException {
+		File sidecar = new File(archive.getPath() + OFFSETS_SUFFIX);
+		if (!sidecar.isFile()) return null;
+		List<Long> offsets = new ArrayList<Long>();
+		BufferedReader br = new BufferedReader(new FileReader(sidecar));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0)
+					offsets.add(Long.parseLong(line));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad offset in " + sidecar.getPath() + ".", e);
+		} finally {
+			br.close();
+		}
+		long[] sorted = new long[offsets.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = offsets.get(i);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+}
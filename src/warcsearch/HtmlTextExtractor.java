@@ -0,0 +1,349 @@
+package warcsearch;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HtmlTextExtractor extracts page body text in one pass over the html
+ * no DOM is built, tags are only recognized and skipped
+ * follows jsoup Element.text() of the body element:
+ * - title, script and style contents are left out
+ *   (other text outside of body ends up in body with jsoup as well)
+ * - whitespace is normalized, block elements and br separate words
+ * - entities are decoded (numeric and the common named ones)
+ * static extract() is thread safe, keeps no state between calls
+ * instance keeps decoding and extraction buffers for the next page,
+ * so parsing threads do not allocate them for every page,
+ * it is not thread safe, every parsing thread should have its own
+ */
+public class HtmlTextExtractor {
+	
+	/** buffers up to this many chars are kept for the next page */
+	private static final int MAX_RETAINED_CHARS = 1024 * 1024;
+	
+	/** initial size of buffers */
+	private static final int INITIAL_CHARS = 64 * 1024;
+	
+	/** elements whose raw content is skipped */
+	private static final String[] SKIPPED = new String[] { "script", "style", "title" };
+	
+	/** elements separating words like jsoup block elements do */
+	private static final String[] BLOCKS = new String[] {
+		"br", "p", "div", "h1", "h2", "h3", "h4", "h5", "h6", "ul", "ol", "li", "dl", "dt", "dd",
+		"table", "thead", "tbody", "tfoot", "tr", "td", "th", "caption", "blockquote", "pre", "hr",
+		"form", "fieldset", "address", "section", "article", "aside", "header", "footer", "nav",
+		"main", "figure", "figcaption", "center", "noscript", "option", "body",
+	};
+	
+	/** the most common named entities */
+	private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+	static {
+		String[] names = new String[] {
+			"amp", "lt", "gt", "quot", "apos", "nbsp", "copy", "reg", "trade", "mdash", "ndash",
+			"hellip", "laquo", "raquo", "lsquo", "rsquo", "ldquo", "rdquo", "bull", "middot", "euro",
+			"pound", "yen", "cent", "sect", "deg", "plusmn", "times", "divide", "iexcl", "iquest",
+		};
+		char[] chars = new char[] {
+			'&', '<', '>', '"', '\'', '\u00a0', '\u00a9', '\u00ae', '\u2122', '\u2014', '\u2013',
+			'\u2026', '\u00ab', '\u00bb', '\u2018', '\u2019', '\u201c', '\u201d', '\u2022', '\u00b7', '\u20ac',
+			'\u00a3', '\u00a5', '\u00a2', '\u00a7', '\u00b0', '\u00b1', '\u00d7', '\u00f7', '\u00a1', '\u00bf',
+		};
+
+		for (int i = 0; i < names.length; i++)
+			ENTITIES.put(names[i], chars[i]);
+	}
+	
+	/** longest entity name we try to decode */
+	private static final int MAX_ENTITY_LENGTH = 10;
+	
+	/** reusable buffer of decoded html */
+	private CharBuffer _html = CharBuffer.allocate(INITIAL_CHARS);
+	
+	/** reusable buffer of extracted text */
+	private char[] _text = new char[INITIAL_CHARS];
+	
+	/** decoders of charsets seen so far */
+	private final Map<Charset, CharsetDecoder> _decoders = new HashMap<Charset, CharsetDecoder>();
+	
+	/**
+	 * extracts body text
+	 * @param html the page
+	 * @return normalized body text
+	 */
+	public static String extract(CharSequence html) {
+		return new Extraction(html).run().toString();
+	}
+	
+	/**
+	 * decodes the page into reusable buffer
+	 * malformed and unmappable input is replaced like Charset.decode() does
+	 * @param bytes encoded page, not consumed
+	 * @param charset charset of the page
+	 * @return decoded page, valid until the next decode()
+	 */
+	public CharBuffer decode(ByteBuffer bytes, Charset charset) {
+		CharsetDecoder decoder = _decoders.get(charset);
+		if (decoder == null) {
+			decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			_decoders.put(charset, decoder);
+		}
+		int needed = (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte()));
+		CharBuffer html = _html;
+		if (html.capacity() < needed) {
+			html = CharBuffer.allocate(needed);
+			if (needed <= MAX_RETAINED_CHARS) _html = html;
+		}
+		html.clear();
+		decoder.reset();
+		decoder.decode(bytes.duplicate(), html, true);
+		decoder.flush(html);
+		html.flip();
+		return html;
+	}
+	
+	/**
+	 * extracts body text into reusable buffer
+	 * @param html the page
+	 * @return normalized body text in array of its own size
+	 */
+	public CharBuffer extractCopy(CharSequence html) {
+		Extraction extraction = new Extraction(html, _text);
+		CharBuffer text = extraction.run();
+		if (extraction._out.length <= MAX_RETAINED_CHARS) _text = extraction._out;
+		return CharBuffer.wrap(Arrays.copyOf(text.array(), text.remaining()));
+	}
+	
+	/**
+	 * state of one extraction
+	 */
+	private static class Extraction {
+		
+		private final CharSequence _html;
+		private final int _length;
+		private char[] _out;
+		private int _outLength = 0;
+		private boolean _pendingSpace = false;
+		
+		private Extraction(CharSequence html) {
+			this(html, new char[Math.max(16, Math.min(html.length(), INITIAL_CHARS))]);
+		}
+		
+		/**
+		 * @param html the page
+		 * @param out output buffer to start with
+		 */
+		private Extraction(CharSequence html, char[] out) {
+			_html = html;
+			_length = html.length();
+			_out = out;
+		}
+		
+		/**
+		 * the single pass
+		 * @return extracted text
+		 */
+		private CharBuffer run() {
+			int i = 0;
+			while (i < _length) {
+				char c = _html.charAt(i);
+				if (c == '<' && i + 1 < _length) {
+					int next = tag(i);
+					if (next > i) {
+						i = next;
+						continue;
+					}
+				}
+				if (c == '&') {
+					i = entity(i);
+					continue;
+				}
+				append(c);
+				i++;
+			}
+			return CharBuffer.wrap(_out, 0, _outLength);
+		}
+		
+		/**
+		 * handles markup starting at '<'
+		 * @param i position of '<'
+		 * @return position after the markup or i if it's not markup
+		 */
+		private int tag(int i) {
+			char c = _html.charAt(i + 1);
+			if (c == '!') {
+				if (startsWith(i, "<!--")) {
+					int end = indexOf("-->", i + 4);
+					return end < 0 ? _length : end + 3;
+				}
+				return skipTag(i + 2);
+			} else if (c == '?') {
+				return skipTag(i + 2);
+			}
+			boolean closing = c == '/';
+			int nameStart = closing ? i + 2 : i + 1;
+			if (nameStart >= _length || !Character.isLetter(_html.charAt(nameStart))) return i;
+			int nameEnd = nameStart;
+			while (nameEnd < _length && isNameChar(_html.charAt(nameEnd))) nameEnd++;
+			int end = skipTag(nameEnd);
+			if (closing) return end;
+			for (String skipped: SKIPPED) {
+				if (nameIs(nameStart, nameEnd, skipped) && _html.charAt(end - 2) != '/') {
+					return skipRawText(end, skipped);
+				}
+			}
+			for (String block: BLOCKS) {
+				if (nameIs(nameStart, nameEnd, block)) {
+					_pendingSpace = true;
+					break;
+				}
+			}
+			return end;
+		}
+		
+		/**
+		 * skips rest of the tag, respects quoted attribute values
+		 * @param i position inside the tag
+		 * @return position after '>'
+		 */
+		private int skipTag(int i) {
+			char quote = 0;
+			for (; i < _length; i++) {
+				char c = _html.charAt(i);
+				if (quote != 0) {
+					if (c == quote) quote = 0;
+				} else if (c == '"' || c == '\'') {
+					quote = c;
+				} else if (c == '>') {
+					return i + 1;
+				}
+			}
+			return _length;
+		}
+		
+		/**
+		 * skips raw content of element up to its closing tag
+		 * @param i position after the start tag
+		 * @param name element name
+		 * @return position after the closing tag
+		 */
+		private int skipRawText(int i, String name) {
+			while (true) {
+				int close = indexOf("</", i);
+				if (close < 0) return _length;
+				int nameEnd = close + 2 + name.length();
+				if (nameEnd <= _length && nameIs(close + 2, nameEnd, name)
+						&& (nameEnd == _length || !isNameChar(_html.charAt(nameEnd)))) {
+					return skipTag(nameEnd);
+				}
+				i = close + 2;
+			}
+		}
+		
+		/**
+		 * decodes entity starting at '&'
+		 * @param i position of '&'
+		 * @return position after the entity
+		 */
+		private int entity(int i) {
+			int semi = -1;
+			for (int j = i + 1; j < _length && j <= i + MAX_ENTITY_LENGTH + 1; j++) {
+				char c = _html.charAt(j);
+				if (c == ';') {
+					semi = j;
+					break;
+				} else if (!Character.isLetterOrDigit(c) && c != '#') {
+					break;
+				}
+			}
+			if (semi > i + 1) {
+				int codePoint = -1;
+				if (_html.charAt(i + 1) == '#') {
+					try {
+						if (semi > i + 2 && (_html.charAt(i + 2) == 'x' || _html.charAt(i + 2) == 'X')) {
+							codePoint = Integer.parseInt(_html.subSequence(i + 3, semi).toString(), 16);
+						} else {
+							codePoint = Integer.parseInt(_html.subSequence(i + 2, semi).toString());
+						}
+					} catch (NumberFormatException e) {
+						codePoint = -1;
+					}
+				} else {
+					Character decoded = ENTITIES.get(_html.subSequence(i + 1, semi).toString());
+					if (decoded != null) codePoint = decoded;
+				}
+				if (codePoint >= 0 && Character.isValidCodePoint(codePoint)) {
+					if (Character.isSupplementaryCodePoint(codePoint)) {
+						char[] chars = Character.toChars(codePoint);
+						append(chars[0]);
+						append(chars[1]);
+					} else {
+						append((char) codePoint);
+					}
+					return semi + 1;
+				}
+			}
+			append('&');
+			return i + 1;
+		}
+		
+		/**
+		 * appends text character, normalizes whitespace
+		 * @param c the character
+		 */
+		private void append(char c) {
+			if (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f') {
+				_pendingSpace = true;
+				return;
+			}
+			if (_pendingSpace && _outLength > 0) put(' ');
+			_pendingSpace = false;
+			put(c);
+		}
+		
+		/**
+		 * puts character to the output, grows it when full
+		 * (text is never longer than the html)
+		 */
+		private void put(char c) {
+			if (_outLength == _out.length)
+				_out = Arrays.copyOf(_out, Math.max(_out.length + 1, (int) Math.min(_length, 2L * _out.length)));
+			_out[_outLength++] = c;
+		}
+		
+		private boolean nameIs(int start, int end, String name) {
+			if (end - start != name.length()) return false;
+			for (int i = 0; i < name.length(); i++) {
+				if (Character.toLowerCase(_html.charAt(start + i)) != name.charAt(i)) return false;
+			}
+			return true;
+		}
+		
+		private boolean startsWith(int i, String s) {
+			if (i + s.length() > _length) return false;
+			for (int j = 0; j < s.length(); j++) {
+				if (_html.charAt(i + j) != s.charAt(j)) return false;
+			}
+			return true;
+		}
+		
+		private int indexOf(String s, int from) {
+			for (int i = from; i + s.length() <= _length; i++) {
+				if (startsWith(i, s)) return i;
+			}
+			return -1;
+		}
+		
+		private static boolean isNameChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_';
+		}
+	
+	}
+
+}
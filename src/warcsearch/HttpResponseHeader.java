@@ -0,0 +1,265 @@
+package warcsearch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * HttpResponseHeader parses status line and headers of http response
+ * stored in the block of WARC response record
+ * works on the raw bytes, nothing is decoded to Strings except
+ * the Content-Type value, so records can be filtered before decoding
+ */
+public class HttpResponseHeader {
+	
+	/** charset used when neither headers nor meta tag declare one */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+	
+	/** how far into the body is the meta charset looked for */
+	private static final int META_SCAN_LIMIT = 1024;
+	
+	private static final byte[] HTTP_PREFIX = "HTTP/".getBytes();
+	private static final byte[] CONTENT_TYPE = "Content-Type".getBytes();
+	private static final byte[] CHARSET = "charset".getBytes();
+	
+	/** status code, e.g. 200 */
+	private final int _status;
+	
+	/** lowercased media type without parameters, null if there is no Content-Type */
+	private final String _mediaType;
+	
+	/** charset parameter of Content-Type, null if there is none */
+	private final String _charset;
+	
+	/** offset of the body in the record block */
+	private final int _bodyOffset;
+	
+	/**
+	 * constructor
+	 * @param status status code
+	 * @param mediaType lowercased media type
+	 * @param charset charset parameter
+	 * @param bodyOffset offset of the body in the record block
+	 */
+	private HttpResponseHeader(int status, String mediaType, String charset, int bodyOffset) {
+		_status = status;
+		_mediaType = mediaType;
+		_charset = charset;
+		_bodyOffset = bodyOffset;
+	}
+	
+	/**
+	 * parses http response header at the start of the buffer
+	 * the buffer position is not changed
+	 * @param block WARC record block
+	 * @return parsed header or null if the block does not start with http response
+	 */
+	public static HttpResponseHeader parse(ByteBuffer block) {
+		int pos = block.position();
+		int limit = block.limit();
+		if (limit - pos < HTTP_PREFIX.length || !matches(block, pos, HTTP_PREFIX)) return null;
+		// status line - HTTP/1.1 200 OK
+		int eol = lineEnd(block, pos, limit);
+		if (eol < 0) return null;
+		int i = pos;
+		while (i < eol && block.get(i) != ' ') i++;
+		while (i < eol && block.get(i) == ' ') i++;
+		int status = 0;
+		int digits = 0;
+		for (; i < eol && digits < 3; i++, digits++) {
+			byte b = block.get(i);
+			if (b < '0' || b > '9') break;
+			status = status * 10 + (b - '0');
+		}
+		if (digits != 3) return null;
+		pos = eol;
+		// header lines until empty line
+		String contentType = null;
+		while (true) {
+			eol = lineEnd(block, pos, limit);
+			if (eol < 0) {
+				// headers without body
+				pos = limit;
+				break;
+			}
+			int lineLimit = eol;
+			while (lineLimit > pos && (block.get(lineLimit - 1) == '\n' || block.get(lineLimit - 1) == '\r'))
+				lineLimit--;
+			if (lineLimit == pos) {
+				pos = eol;
+				break;
+			}
+			if (contentType == null && lineLimit - pos > CONTENT_TYPE.length
+					&& block.get(pos + CONTENT_TYPE.length) == ':' && matches(block, pos, CONTENT_TYPE)) {
+				contentType = ascii(block, pos + CONTENT_TYPE.length + 1, lineLimit);
+			}
+			pos = eol;
+		}
+		String mediaType = null;
+		String charset = null;
+		if (contentType != null) {
+			int semicolon = contentType.indexOf(';');
+			mediaType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+			if (semicolon >= 0)
+				charset = charsetParameter(contentType.substring(semicolon + 1));
+		}
+		return new HttpResponseHeader(status, mediaType, charset, pos - block.position());
+	}
+	
+	/**
+	 * @return true for 2xx responses
+	 */
+	public boolean isSuccess() {
+		return _status >= 200 && _status < 300;
+	}
+	
+	/**
+	 * decides whether the body is html page worth indexing
+	 * responses without Content-Type are sniffed (body starting with '<')
+	 * @param body body of the response
+	 * @return true for html and xhtml
+	 */
+	public boolean isHtml(ByteBuffer body) {
+		if (_mediaType == null || _mediaType.length() == 0) {
+			for (int i = body.position(); i < body.limit(); i++) {
+				byte b = body.get(i);
+				if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return b == '<';
+			}
+			return false;
+		}
+		return _mediaType.equals("text/html") || _mediaType.equals("application/xhtml+xml");
+	}
+	
+	/**
+	 * determines charset of the body
+	 * Content-Type charset, then meta charset in the start of the body,
+	 * DEFAULT_CHARSET when neither is there or it is not supported
+	 * @param body body of the response
+	 * @return the charset
+	 */
+	public Charset getCharset(ByteBuffer body) {
+		Charset charset = forName(_charset);
+		if (charset == null)
+			charset = forName(metaCharset(body));
+		return charset != null ? charset : DEFAULT_CHARSET;
+	}
+	
+	/**
+	 * @return the status code
+	 */
+	public int getStatus() {
+		return _status;
+	}
+	
+	/**
+	 * @return lowercased media type or null if there is no Content-Type
+	 */
+	public String getMediaType() {
+		return _mediaType;
+	}
+	
+	/**
+	 * @return offset of the body in the record block
+	 */
+	public int getBodyOffset() {
+		return _bodyOffset;
+	}
+	
+	/**
+	 * looks for charset declared in meta tag
+	 * (<meta charset="..."> or <meta http-equiv content="...; charset=...">)
+	 * just the first charset= in the start of the body is taken
+	 * @param body body of the response
+	 * @return charset name or null
+	 */
+	private static String metaCharset(ByteBuffer body) {
+		int limit = Math.min(body.limit(), body.position() + META_SCAN_LIMIT);
+		for (int i = body.position(); i + CHARSET.length < limit; i++) {
+			if (!matches(body, i, CHARSET)) continue;
+			int j = i + CHARSET.length;
+			while (j < limit && body.get(j) == ' ') j++;
+			if (j >= limit || body.get(j) != '=') continue;
+			j++;
+			while (j < limit && (body.get(j) == ' ' || body.get(j) == '"' || body.get(j) == '\'')) j++;
+			int start = j;
+			while (j < limit && isTokenChar(body.get(j))) j++;
+			if (j > start) return ascii(body, start, j);
+		}
+		return null;
+	}
+	
+	/**
+	 * @param parameters Content-Type parameters following the media type
+	 * @return value of charset parameter or null
+	 */
+	private static String charsetParameter(String parameters) {
+		for (String parameter: parameters.split(";")) {
+			int eq = parameter.indexOf('=');
+			if (eq < 0 || !parameter.substring(0, eq).trim().equalsIgnoreCase("charset")) continue;
+			String value = parameter.substring(eq + 1).trim();
+			if (value.length() > 1 && (value.charAt(0) == '"' || value.charAt(0) == '\''))
+				value = value.substring(1, value.length() - (value.charAt(value.length() - 1) == value.charAt(0) ? 1 : 0));
+			return value.length() > 0 ? value : null;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return supported charset of given name or null
+	 */
+	private static Charset forName(String name) {
+		if (name == null) return null;
+		try {
+			return Charset.forName(name);
+		} catch (IllegalCharsetNameException e) {
+			return null;
+		} catch (UnsupportedCharsetException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return true for characters allowed in charset names
+	 */
+	private static boolean isTokenChar(byte b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+				|| b == '-' || b == '_' || b == '.' || b == ':';
+	}
+	
+	/**
+	 * @return index right after the end of line starting at pos, -1 if there is none
+	 */
+	private static int lineEnd(ByteBuffer buf, int pos, int limit) {
+		for (int i = pos; i < limit; i++) {
+			if (buf.get(i) == '\n') return i + 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * case insensitive comparison of bytes with ascii pattern
+	 * @return true if buf contains pattern at given position
+	 */
+	private static boolean matches(ByteBuffer buf, int pos, byte[] pattern) {
+		for (int j = 0; j < pattern.length; j++) {
+			byte b = buf.get(pos + j);
+			if (b != pattern[j] && Character.toLowerCase((char) b) != Character.toLowerCase((char) pattern[j]))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * decodes trimmed ascii bytes
+	 */
+	private static String ascii(ByteBuffer buf, int from, int to) {
+		while (from < to && (buf.get(from) == ' ' || buf.get(from) == '\t')) from++;
+		while (to > from && (buf.get(to - 1) == ' ' || buf.get(to - 1) == '\t')) to--;
+		char[] chars = new char[to - from];
+		for (int i = from; i < to; i++)
+			chars[i - from] = (char) (buf.get(i) & 0xff);
+		return new String(chars);
+	}
+
+}
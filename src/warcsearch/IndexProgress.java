@@ -0,0 +1,196 @@
+package warcsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * IndexProgress tracks which records of the archive are indexed
+ * records are read in byte ranges, parsed and indexed by pools of threads,
+ * so they are indexed out of order; for every range it keeps the reading
+ * position and offsets of records in flight (read, not indexed yet)
+ * checkpoint of a range is the offset of the first record in flight,
+ * or the reading position when there is none - everything before it is indexed
+ * checkpoints are saved in index commit data, so interrupted indexing
+ * can be resumed from them; records behind the checkpoint but before
+ * the reading position may be indexed already, they are upserted on resume
+ */
+public class IndexProgress {
+	
+	/**
+	 * progress of one byte range
+	 */
+	private static class RangeProgress {
+		
+		/** archive file */
+		private final String _file;
+		
+		/** end of range (exclusive) */
+		private final long _end;
+		
+		/** records starting before this are read */
+		private long _pos;
+		
+		/** records before this may be indexed by previous run */
+		private final long _resumeEnd;
+		
+		/** offsets of records in flight and their counts */
+		private final TreeMap<Long, Integer> _inFlight = new TreeMap<Long, Integer>();
+		
+		private RangeProgress(String file, long start, long end, long resumeEnd) {
+			_file = file;
+			_pos = start;
+			_end = end;
+			_resumeEnd = resumeEnd;
+		}
+		
+		/**
+		 * @return offset before which everything is indexed
+		 */
+		private long checkpoint() {
+			return _inFlight.isEmpty() ? _pos : Math.min(_pos, _inFlight.firstKey());
+		}
+	
+	}
+	
+	private final List<RangeProgress> _ranges = new ArrayList<RangeProgress>();
+	
+	/** true if the ranges come from saved checkpoint */
+	private final boolean _resumed;
+	
+	/**
+	 * constructor for new indexing
+	 * ranges are added by the reader
+	 */
+	public IndexProgress() {
+		_resumed = false;
+	}
+	
+	/**
+	 * constructor for resumed indexing
+	 * @param saved checkpoint saved by save()
+	 * @throws IllegalArgumentException when the checkpoint is broken
+	 */
+	public IndexProgress(String saved) {
+		_resumed = true;
+		for (String line: saved.split("\n")) {
+			if (line.length() == 0) continue;
+			String[] parts = line.split("\t", 4);
+			if (parts.length != 4)
+				throw new IllegalArgumentException("Broken checkpoint line " + line + ".");
+			long checkpoint = Long.parseLong(parts[0]);
+			_ranges.add(new RangeProgress(parts[3], checkpoint, Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+		}
+	}
+	
+	/**
+	 * @return true if the ranges come from saved checkpoint
+	 */
+	public boolean isResumed() {
+		return _resumed;
+	}
+	
+	/**
+	 * adds byte range to be read
+	 * @param file archive file
+	 * @param start start of range
+	 * @param end end of range (exclusive)
+	 * @return id of the range
+	 */
+	public synchronized int addRange(String file, long start, long end) {
+		_ranges.add(new RangeProgress(file, start, end, start));
+		return _ranges.size() - 1;
+	}
+	
+	/**
+	 * @return number of ranges
+	 */
+	public synchronized int getRangeNo() {
+		return _ranges.size();
+	}
+	
+	/**
+	 * @return archive file of the range
+	 */
+	public synchronized String getFile(int range) {
+		return _ranges.get(range)._file;
+	}
+	
+	/**
+	 * @return reading position of the range (its start before reading)
+	 */
+	public synchronized long getPosition(int range) {
+		return _ranges.get(range)._pos;
+	}
+	
+	/**
+	 * @return end of the range
+	 */
+	public synchronized long getEnd(int range) {
+		return _ranges.get(range)._end;
+	}
+	
+	/**
+	 * marks record as read and going to be indexed
+	 * has to be called before the reading position moves behind the record
+	 * @param range id of the range
+	 * @param offset offset of the record
+	 */
+	public synchronized void read(int range, long offset) {
+		TreeMap<Long, Integer> inFlight = _ranges.get(range)._inFlight;
+		Integer count = inFlight.get(offset);
+		inFlight.put(offset, count == null ? 1 : count + 1);
+	}
+	
+	/**
+	 * moves reading position of the range
+	 * @param range id of the range
+	 * @param pos records starting before this are read
+	 */
+	public synchronized void advance(int range, long pos) {
+		RangeProgress progress = _ranges.get(range);
+		progress._pos = Math.max(progress._pos, pos);
+	}
+	
+	/**
+	 * marks record as indexed
+	 * @param range id of the range
+	 * @param offset offset of the record
+	 */
+	public synchronized void indexed(int range, long offset) {
+		TreeMap<Long, Integer> inFlight = _ranges.get(range)._inFlight;
+		Integer count = inFlight.get(offset);
+		if (count == null) return;
+		if (count == 1) {
+			inFlight.remove(offset);
+		} else {
+			inFlight.put(offset, count - 1);
+		}
+	}
+	
+	/**
+	 * checks whether the record might have been indexed by the interrupted run
+	 * @param range id of the range
+	 * @param offset offset of the record
+	 * @return true if the record has to be upserted
+	 */
+	public synchronized boolean mayBeIndexed(int range, long offset) {
+		return offset < _ranges.get(range)._resumeEnd;
+	}
+	
+	/**
+	 * saves checkpoints of all ranges
+	 * one line per range - checkpoint, end, reading position and file
+	 * @return the checkpoints
+	 */
+	public synchronized String save() {
+		StringBuilder sb = new StringBuilder();
+		for (RangeProgress progress: _ranges) {
+			if (progress.checkpoint() >= progress._end) continue;
+			sb.append(progress.checkpoint()).append('\t').append(progress._end).append('\t')
+				.append(Math.max(progress._pos, progress._resumeEnd)).append('\t').append(progress._file).append('\n');
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,338 @@
+package warcsearch;
+
+import org.apache.lucene.index.IndexWriterConfig;
+
+/**
+ * encaps class for indexing pipeline configuration
+ * thread counts of the stages and their options
+ * expandable
+ */
+public class IndexSettings {
+	
+	/** html text extractors */
+	public static final String EXTRACTOR_STREAM = "stream";
+	public static final String EXTRACTOR_JSOUP = "jsoup";
+	
+	/** what to do with shards at the end of indexing */
+	public static final String SHARD_MODE_MERGE = "merge";
+	public static final String SHARD_MODE_MULTI = "multi";
+	
+	/** what to do with near-duplicate pages */
+	public static final String NEAR_DUPLICATES_OFF = "off";
+	public static final String NEAR_DUPLICATES_SKIP = "skip";
+	public static final String NEAR_DUPLICATES_MARK = "mark";
+	
+	/** default interval of checkpoint commits */
+	public static final long DEFAULT_CHECKPOINT_MS = 60000;
+	
+	/** default cap of page bytes, the rest of bigger pages is not indexed */
+	public static final long DEFAULT_MAX_PAGE_BYTES = 8L * 1024 * 1024;
+	
+	/** default budget of records in flight between two stages */
+	public static final long DEFAULT_QUEUE_BYTES = 64L * 1024 * 1024;
+	
+	private int _readThreadNo = 1;
+	private int _parseThreadNo = 1;
+	private int _threadNo = 1;
+	private long _refreshMs = Indexer.DEFAULT_REFRESH_MS;
+	private String _extractor = EXTRACTOR_STREAM;
+	private long _queueBytes = DEFAULT_QUEUE_BYTES;
+	private long _maxPageBytes = DEFAULT_MAX_PAGE_BYTES;
+	private int _shardNo = 1;
+	private boolean _mergeShards = true;
+	private int _mergeThreadNo = 0;
+	private double _ramBufferMb = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+	private long _checkpointMs = DEFAULT_CHECKPOINT_MS;
+	private boolean _resume = false;
+	private boolean _update = false;
+	private boolean _latestOnly = false;
+	private String _nearDuplicates = NEAR_DUPLICATES_OFF;
+	private boolean _autotune = false;
+	private long _metricsMs = MetricsReporter.DEFAULT_INTERVAL_MS;
+	private String _metricsFile = null;
+	
+	/**
+	 * @return number of threads reading the archive
+	 */
+	public int getReadThreadNo() {
+		return _readThreadNo;
+	}
+	
+	/**
+	 * @param readThreadNo number of threads reading the archive
+	 */
+	public void setReadThreadNo(int readThreadNo) {
+		_readThreadNo = readThreadNo;
+	}
+	
+	/**
+	 * @return number of html parsing threads
+	 */
+	public int getParseThreadNo() {
+		return _parseThreadNo;
+	}
+	
+	/**
+	 * @param parseThreadNo number of html parsing threads
+	 */
+	public void setParseThreadNo(int parseThreadNo) {
+		_parseThreadNo = parseThreadNo;
+	}
+	
+	/**
+	 * @return number of indexing threads
+	 */
+	public int getThreadNo() {
+		return _threadNo;
+	}
+	
+	/**
+	 * @param threadNo number of indexing threads
+	 */
+	public void setThreadNo(int threadNo) {
+		_threadNo = threadNo;
+	}
+	
+	/**
+	 * @return interval of near-real-time searcher refresh while indexing in ms
+	 */
+	public long getRefreshMs() {
+		return _refreshMs;
+	}
+	
+	/**
+	 * @param refreshMs interval of near-real-time searcher refresh while indexing in ms
+	 */
+	public void setRefreshMs(long refreshMs) {
+		_refreshMs = refreshMs;
+	}
+	
+	/**
+	 * @return html text extractor, EXTRACTOR_STREAM or EXTRACTOR_JSOUP
+	 */
+	public String getExtractor() {
+		return _extractor;
+	}
+	
+	/**
+	 * @param extractor html text extractor, EXTRACTOR_STREAM or EXTRACTOR_JSOUP
+	 */
+	public void setExtractor(String extractor) {
+		_extractor = extractor;
+	}
+	
+	/**
+	 * @return budget of bytes in flight in each queue between the stages
+	 */
+	public long getQueueBytes() {
+		return _queueBytes;
+	}
+	
+	/**
+	 * @param queueBytes budget of bytes in flight in each queue between the stages
+	 */
+	public void setQueueBytes(long queueBytes) {
+		_queueBytes = queueBytes;
+	}
+	
+	/**
+	 * @return cap of page bytes, the rest of bigger pages is not indexed, 0 for no cap
+	 */
+	public long getMaxPageBytes() {
+		return _maxPageBytes;
+	}
+	
+	/**
+	 * @param maxPageBytes cap of page bytes, the rest of bigger pages is not indexed, 0 for no cap
+	 */
+	public void setMaxPageBytes(long maxPageBytes) {
+		_maxPageBytes = maxPageBytes;
+	}
+	
+	/**
+	 * @return number of index shards, every shard has its own writer
+	 */
+	public int getShardNo() {
+		return _shardNo;
+	}
+	
+	/**
+	 * @param shardNo number of index shards, every shard has its own writer
+	 */
+	public void setShardNo(int shardNo) {
+		_shardNo = shardNo;
+	}
+	
+	/**
+	 * @return true if shards are merged into one index at the end,
+	 *         false if they are kept and searched through MultiReader
+	 */
+	public boolean getMergeShards() {
+		return _mergeShards;
+	}
+	
+	/**
+	 * @param mergeShards true if shards are merged into one index at the end,
+	 *        false if they are kept and searched through MultiReader
+	 */
+	public void setMergeShards(boolean mergeShards) {
+		_mergeShards = mergeShards;
+	}
+	
+	/**
+	 * @return number of merge scheduler threads per writer, 0 for lucene default
+	 */
+	public int getMergeThreadNo() {
+		return _mergeThreadNo;
+	}
+	
+	/**
+	 * @param mergeThreadNo number of merge scheduler threads per writer, 0 for lucene default
+	 */
+	public void setMergeThreadNo(int mergeThreadNo) {
+		_mergeThreadNo = mergeThreadNo;
+	}
+	
+	/**
+	 * @return ram buffer of every writer in MB
+	 */
+	public double getRamBufferMb() {
+		return _ramBufferMb;
+	}
+	
+	/**
+	 * @param ramBufferMb ram buffer of every writer in MB
+	 */
+	public void setRamBufferMb(double ramBufferMb) {
+		_ramBufferMb = ramBufferMb;
+	}
+	
+	/**
+	 * @return interval of checkpoint commits in ms, 0 disables checkpoints
+	 */
+	public long getCheckpointMs() {
+		return _checkpointMs;
+	}
+	
+	/**
+	 * @param checkpointMs interval of checkpoint commits in ms, 0 disables checkpoints
+	 */
+	public void setCheckpointMs(long checkpointMs) {
+		_checkpointMs = checkpointMs;
+	}
+	
+	/**
+	 * @return true if interrupted indexing is resumed from its last checkpoint
+	 */
+	public boolean getResume() {
+		return _resume;
+	}
+	
+	/**
+	 * @param resume true if interrupted indexing is resumed from its last checkpoint
+	 */
+	public void setResume(boolean resume) {
+		_resume = resume;
+	}
+	
+	/**
+	 * @return true if the archive is added to existing index
+	 */
+	public boolean getUpdate() {
+		return _update;
+	}
+	
+	/**
+	 * @param update true if the archive is added to existing index
+	 */
+	public void setUpdate(boolean update) {
+		_update = update;
+	}
+	
+	/**
+	 * @return true if only the latest capture of every url is kept
+	 */
+	public boolean getLatestOnly() {
+		return _latestOnly;
+	}
+	
+	/**
+	 * @param latestOnly true if only the latest capture of every url is kept
+	 */
+	public void setLatestOnly(boolean latestOnly) {
+		_latestOnly = latestOnly;
+	}
+	
+	/**
+	 * @return what to do with near-duplicate pages,
+	 *         NEAR_DUPLICATES_OFF, NEAR_DUPLICATES_SKIP or NEAR_DUPLICATES_MARK
+	 */
+	public String getNearDuplicates() {
+		return _nearDuplicates;
+	}
+	
+	/**
+	 * @param nearDuplicates what to do with near-duplicate pages,
+	 *        NEAR_DUPLICATES_OFF, NEAR_DUPLICATES_SKIP or NEAR_DUPLICATES_MARK
+	 */
+	public void setNearDuplicates(String nearDuplicates) {
+		_nearDuplicates = nearDuplicates;
+	}
+	
+	/**
+	 * @return true if near-duplicate pages are detected
+	 */
+	public boolean detectNearDuplicates() {
+		return !NEAR_DUPLICATES_OFF.equals(_nearDuplicates);
+	}
+	
+	/**
+	 * @return true if thread counts of parsing and indexing are tuned while indexing
+	 */
+	public boolean getAutotune() {
+		return _autotune;
+	}
+	
+	/**
+	 * @param autotune true if thread counts of parsing and indexing are tuned while indexing
+	 */
+	public void setAutotune(boolean autotune) {
+		_autotune = autotune;
+	}
+	
+	/**
+	 * @return interval of metrics reports in ms
+	 */
+	public long getMetricsMs() {
+		return _metricsMs;
+	}
+	
+	/**
+	 * @param metricsMs interval of metrics reports in ms
+	 */
+	public void setMetricsMs(long metricsMs) {
+		_metricsMs = metricsMs;
+	}
+	
+	/**
+	 * @return file metrics are exported to (.csv or JSON lines), null if not exported
+	 */
+	public String getMetricsFile() {
+		return _metricsFile;
+	}
+	
+	/**
+	 * @param metricsFile file metrics are exported to (.csv or JSON lines), null if not exported
+	 */
+	public void setMetricsFile(String metricsFile) {
+		_metricsFile = metricsFile;
+	}
+	
+	/**
+	 * @return true if jsoup DOM is used for text extraction
+	 */
+	public boolean useJsoup() {
+		return EXTRACTOR_JSOUP.equals(_extractor);
+	}
+
+}
@@ -2,40 +2,101 @@ package warcsearch;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InfoStream;
 import org.apache.lucene.util.Version;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 
 /**
  * Indexer class handles index creation and search
  * indexed entity is Document inserted via write methid in ArrayList
  * configured statically to use TFIDFSimilarity for ranking
+ * the index can be built in K shards (shard-NN subdirectories), every shard
+ * has its own writer, so indexing threads do not contend on one writer;
+ * the shards are either merged into one index at the end
+ * or kept and searched through MultiReader
+ * unsharded index is committed periodically with checkpoint of IndexProgress
+ * in commit data, interrupted indexing can be resumed from the last one
+ * in update mode new archive is added to existing index, records are upserted
+ * by WARC-Record-ID and the identities of all indexed archives are kept in commit data;
+ * optionally only the latest capture (by WARC-Date) of every WARC-Target-URI is kept
+ * near-duplicate pages (see NearDuplicates) are either skipped or indexed
+ * as pointers to their canonical pages
+ * finished index gets CaptureIndex sidecar for exact lookups by url and ids
+ * indexing, flushes, merges and searches are timed in Metrics of the indexer
  */
 public class Indexer implements Runnable {
 	
 	/** number of results */
-	private static final int HITS_PER_PAGE = 10;
+	public static final int HITS_PER_PAGE = 10;
 	
 	/** default search field in Document */
 	private static final String DEFAULT_SEARCH_FIELD = "text";
 	
-	/** system-specific temp directory with place to write indexes */
-	private static final String TMP_DIR = System.getProperty("java.io.tmpdir") + "/WarcSearch/" + System.nanoTime();
+	/** doc values with position of the record in archive */
+	public static final String SOURCE_FILE_FIELD = "sourceFile";
+	public static final String OFFSET_FIELD = "offset";
+	public static final String LENGTH_FIELD = "length";
+	
+	/** stored fields loaded for every hit */
+	private static final Set<String> STORED_FIELDS = new HashSet<String>(Arrays.asList(
+			"recordId", "targetUri", "trecId", "date", "duplicateOf"));
+	
+	/** default directory with persistent indexes, one subdirectory per archive */
+	public static final String DEFAULT_INDEX_BASE = System.getProperty("user.home") + "/.warcsearch/indexes";
+	
+	/** commit data key holding the identity of indexed archive */
+	private static final String ARCHIVE_KEY = "archive";
+	
+	/** commit data key holding the number of shards of sharded index */
+	private static final String SHARDS_KEY = "shards";
+	
+	/** name prefix of shard directories */
+	private static final String SHARD_PREFIX = "shard-";
+	
+	/** captures of one url looked up in existing index */
+	private static final int MAX_CAPTURES = 16;
+	
+	/** commit data keys of checkpoint - identity of the archive being indexed and its progress */
+	private static final String PARTIAL_KEY = "partial";
+	private static final String PROGRESS_KEY = "progress";
 	
 	/** lucene analyzer */
 	private static StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_47);
@@ -44,77 +105,557 @@ public class Indexer implements Runnable {
 	//private static Directory _index = new RAMDirectory();
 	private FSDirectory _dir;
 	
-	/** lucene index reader, searcher, collector */
-	private IndexWriterConfig _config;
-	private IndexWriter _writer;
-	private IndexReader _reader;
-	private IndexSearcher _searcher;
-	private TopScoreDocCollector _collector;
+	/** default interval of near-real-time searcher refresh */
+	public static final long DEFAULT_REFRESH_MS = 1000;
+	
+	/** lucene index writers, one per shard */
+	private IndexWriter[] _writers;
+	
+	/** directory of the index, shards are its subdirectories */
+	private final File _indexDir;
+	
+	/** number of shards, 1 for plain index */
+	private final int _shardNo;
+	
+	/** merge shards into one index at the end or keep them */
+	private final boolean _mergeShards;
+	
+	/** merge threads per writer, 0 for lucene default */
+	private final int _mergeThreadNo;
+	
+	/** ram buffer per writer */
+	private final double _ramBufferMb;
+	
+	/** progress of indexing saved in checkpoints, null if not tracked */
+	private IndexProgress _progress;
+	
+	/** true if indexing continues from checkpoint */
+	private boolean _resume;
+	
+	/** interval of checkpoint commits */
+	private final long _checkpointMs;
+	
+	/** true if archive is added to existing index */
+	private final boolean _update;
+	
+	/** identities of archives already in updated index, null if there are none */
+	private String _archives;
+	
+	/** keep just the latest capture of every url */
+	private final boolean _latestOnly;
+	
+	/** latest capture date of urls indexed in this run */
+	private final ConcurrentHashMap<String, String> _latest = new ConcurrentHashMap<String, String>();
+	
+	/** locks serializing updates of one url */
+	private final Object[] _urlLocks = new Object[64];
+	
+	/** searcher of the index as it was before this run, for capture dates of indexed urls */
+	private IndexSearcher _existing;
+	
+	/** number of captures dropped because there is a later one */
+	private final AtomicLong _olderCaptures = new AtomicLong();
+	
+	/** number of records taken by the indexing threads and bytes allocated by them */
+	private final AtomicLong _processedNo = new AtomicLong();
+	private final AtomicLong _allocated = new AtomicLong();
+	
+	/** timers and counters of indexing and searching */
+	private final Metrics _metrics = new Metrics();
+	
+	/** near-duplicate detector, null if disabled */
+	private final NearDuplicates _nearDuplicates;
+	
+	/** index near-duplicates as pointers instead of skipping them */
+	private final boolean _markDuplicates;
+	
+	/** 
+	 * shared reference counted searcher
+	 * near-real-time from the writer while indexing, from the directory afterwards
+	 */
+	private volatile ReferenceManager<IndexSearcher> _searcherManager;
+	
+	/** cache of search results, null if disabled */
+	private volatile QueryCache _cache;
 	
 	/** produced documents go to this shared queue */
-	private final LinkedBlockingQueue<ExtendedWarcRecord> _queue;
+	private final RecordQueue<PageRecord> _queue;
 	
-	/** number of consuming threads */
+	/** initial number of consuming threads */
 	private final int _threadNo;
 	
+	/** consuming threads, thread n writes to shard n % _shardNo */
+	private final WorkerPool _pool;
+	
+	/** identity of indexed archive, stored in commit data */
+	private final String _archiveId;
+	
+	/** interval of near-real-time searcher refresh while indexing */
+	private final long _refreshMs;
+	
 	/**
 	 * Indexer constructor
 	 * prepares Indexer default needs
-	 * IndexWriterConfig specifies IndexWriters behaviour
-	 * FSDirectory opens tmp file as index storage
-	 */
-	public Indexer(LinkedBlockingQueue<ExtendedWarcRecord> queue, int threadNo) {
-		_queue = queue;
-		_threadNo = threadNo;
-		_config = new IndexWriterConfig(Version.LUCENE_47, analyzer);
-		_config.setOpenMode(OpenMode.CREATE);
-		_config.setSimilarity(new DefaultSimilarity()); // DefaultSimilarity is subclass of TFIDFSimilarity
+	 * FSDirectory opens given directory as index storage
+	 * @param indexDir directory of the index, existing index is rewritten unless updated or resumed
+	 * @param archiveId identity of indexed archive
+	 * @param settings indexing configuration (number of threads, shards, writer options,
+	 *        refresh interval, queue budget, update mode, near-duplicates)
+	 */
+	public Indexer(File indexDir, String archiveId, IndexSettings settings) {
+		_queue = new RecordQueue<PageRecord>("parsed", settings.getQueueBytes());
+		_threadNo = settings.getThreadNo();
+		_pool = new WorkerPool("indexer", new WorkerPool.WorkerFactory() {
+			@Override
+			public Runnable create(int workerNumber) {
+				return new IndexerTask(_writers[workerNumber % _shardNo], _queue, workerNumber);
+			}
+		});
+		_archiveId = archiveId;
+		_refreshMs = settings.getRefreshMs();
+		_indexDir = indexDir;
+		_update = settings.getUpdate();
+		_latestOnly = settings.getLatestOnly();
+		_markDuplicates = IndexSettings.NEAR_DUPLICATES_MARK.equals(settings.getNearDuplicates());
+		_nearDuplicates = settings.detectNearDuplicates() ? new NearDuplicates(_markDuplicates) : null;
+		for (int i = 0; i < _urlLocks.length; i++)
+			_urlLocks[i] = new Object();
+		if ((_update || _latestOnly) && settings.getShardNo() > 1 && archiveId != null) {
+			// upserts have to see all documents
+			System.out.println("Updated or deduplicated index is not sharded, using 1 shard.");
+			_shardNo = 1;
+		} else {
+			// more shards than threads would stay empty
+			_shardNo = Math.max(1, Math.min(settings.getShardNo(), _threadNo));
+		}
+		_mergeShards = settings.getMergeShards();
+		_mergeThreadNo = settings.getMergeThreadNo();
+		_ramBufferMb = settings.getRamBufferMb();
+		_checkpointMs = settings.getCheckpointMs();
 		try {	
-			_dir = FSDirectory.open(new File(TMP_DIR));
+			_dir = FSDirectory.open(indexDir);
 		} catch (IOException e) {
-			System.err.println("There was a problem with tmp dir in your system.");
+			System.err.println("There was a problem with index dir " + indexDir + ".");
 			System.err.println(e.getMessage());
 			e.getStackTrace();
 		}
+		if (archiveId == null) return;
+		if (_update) {
+			Map<String, String> userData = commitData(indexDir);
+			if (userData != null) _archives = userData.get(ARCHIVE_KEY);
+		}
+		// checkpoints are kept for unsharded index only
+		if (_shardNo > 1) {
+			if (settings.getResume())
+				System.out.println("Checkpoints are not kept for sharded index, indexing from the start.");
+			return;
+		}
+		if (settings.getResume()) {
+			_progress = readProgress(indexDir, archiveId);
+			if (_progress != null) {
+				_resume = true;
+			} else {
+				System.out.println("There is no checkpoint in " + indexDir + ", indexing from the start.");
+			}
+		}
+		if (_progress == null && _checkpointMs > 0)
+			_progress = new IndexProgress();
+	}
+	
+	/**
+	 * checks whether there is an index (complete or not) in the directory
+	 * @param indexDir directory of the index
+	 * @return true if there is something to search
+	 */
+	public static boolean exists(File indexDir) {
+		return commitData(indexDir) != null || shardDirs(indexDir).length > 0;
+	}
+	
+	/**
+	 * checks whether the directory holds sharded index
+	 * (shards kept for MultiReader, they can not be updated)
+	 * @param indexDir directory of the index
+	 * @return true if there are shards and no merged index
+	 */
+	public static boolean isSharded(File indexDir) {
+		return commitData(indexDir) == null && shardDirs(indexDir).length > 0;
+	}
+	
+	/**
+	 * reads the last checkpoint of interrupted indexing
+	 * @param indexDir directory of the index
+	 * @param archiveId identity of the archive
+	 * @return progress of the indexing or null if there is no checkpoint of the archive
+	 */
+	public static IndexProgress readProgress(File indexDir, String archiveId) {
+		Map<String, String> userData = commitData(indexDir);
+		if (userData == null || !archiveId.equals(userData.get(PARTIAL_KEY)) || userData.get(PROGRESS_KEY) == null)
+			return null;
+		try {
+			return new IndexProgress(userData.get(PROGRESS_KEY));
+		} catch (IllegalArgumentException e) {
+			System.err.println("There was a problem with checkpoint in " + indexDir + ".");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * @return indexing threads
+	 */
+	public WorkerPool getPool() {
+		return _pool;
+	}
+	
+	/**
+	 * @return number of records taken by the indexing threads
+	 */
+	public long getProcessedNo() {
+		return _processedNo.get();
+	}
+	
+	/**
+	 * @return bytes allocated by the indexing threads (analysis included), -1 if not known
+	 */
+	public long getAllocatedBytes() {
+		return JvmStats.threadAllocatedBytes() < 0 ? -1 : _allocated.get();
+	}
+	
+	/**
+	 * @return progress of indexing tracked for checkpoints, null if not tracked
+	 */
+	public IndexProgress getProgress() {
+		return _progress;
+	}
+	
+	/**
+	 * Indexer constructor for searching existing index only
+	 * @param indexDir directory of the index
+	 */
+	public Indexer(File indexDir) {
+		this(indexDir, null, new IndexSettings());
+	}
+	
+	/**
+	 * creates config of one index writer
+	 * IndexWriterConfig specifies IndexWriters behaviour,
+	 * it can not be shared by more writers
+	 * @return new config
+	 */
+	private IndexWriterConfig createConfig() {
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_47, analyzer);
+		config.setOpenMode(_resume || _update ? OpenMode.CREATE_OR_APPEND : OpenMode.CREATE);
+		config.setSimilarity(new DefaultSimilarity()); // DefaultSimilarity is subclass of TFIDFSimilarity
+		config.setRAMBufferSizeMB(_ramBufferMb);
+		ConcurrentMergeScheduler scheduler = new TimedMergeScheduler();
+		if (_mergeThreadNo > 0) {
+			scheduler.setMaxMergesAndThreads(
+					Math.max(ConcurrentMergeScheduler.DEFAULT_MAX_MERGE_COUNT, _mergeThreadNo + 2), _mergeThreadNo);
+		}
+		config.setMergeScheduler(scheduler);
+		config.setInfoStream(new FlushTimer());
+		return config;
+	}
+	
+	/**
+	 * puts result cache in front of search
+	 * @param cache the cache or null to disable caching
+	 */
+	public void setCache(QueryCache cache) {
+		_cache = cache;
+	}
+	
+	/**
+	 * @return result cache or null if disabled
+	 */
+	public QueryCache getCache() {
+		return _cache;
+	}
+	
+	/**
+	 * @return timers and counters of indexing and searching
+	 */
+	public Metrics getMetrics() {
+		return _metrics;
+	}
+	
+	/**
+	 * @return queue of parsed records to be indexed
+	 */
+	public RecordQueue<PageRecord> getQueue() {
+		return _queue;
+	}
+	
+	/**
+	 * directory of persistent index for given archive
+	 * named after the archive (file, directory or glob) and hash of its identity
+	 * @param indexBase directory with persistent indexes
+	 * @param archiveLoc location of WARC archive
+	 * @param archiveId identity of the archive
+	 * @return index directory
+	 */
+	public static File indexDir(String indexBase, String archiveLoc, String archiveId) {
+		String hash;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(archiveId.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 8; i++)
+				sb.append(String.format("%02x", digest[i]));
+			hash = sb.toString();
+		} catch (Exception e) {
+			hash = Integer.toHexString(archiveId.hashCode());
+		}
+		String name = new File(archiveLoc).getName().replaceAll("[^A-Za-z0-9._-]", "_");
+		return new File(indexBase, name + "-" + hash);
+	}
+	
+	/**
+	 * checks whether there is complete index of the archive
+	 * the archive identity is committed only when indexing finished
+	 * (updated index holds one identity per line)
+	 * kept shards are complete when all of them are committed
+	 * @param indexDir directory of the index
+	 * @param archiveId identity of the archive
+	 * @return true if the index can be searched
+	 */
+	public static boolean isIndexed(File indexDir, String archiveId) {
+		Map<String, String> userData = commitData(indexDir);
+		if (userData != null)
+			return userData.get(ARCHIVE_KEY) != null
+					&& Arrays.asList(userData.get(ARCHIVE_KEY).split("\n")).contains(archiveId);
+		File[] shards = shardDirs(indexDir);
+		if (shards.length == 0) return false;
+		for (File shard: shards) {
+			userData = commitData(shard);
+			if (userData == null || !archiveId.equals(userData.get(ARCHIVE_KEY))
+					|| !String.valueOf(shards.length).equals(userData.get(SHARDS_KEY)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * reads commit data of the index
+	 * @param indexDir directory of the index
+	 * @return commit data or null if there is no index
+	 */
+	private static Map<String, String> commitData(File indexDir) {
+		try {
+			FSDirectory dir = FSDirectory.open(indexDir);
+			try {
+				if (!DirectoryReader.indexExists(dir)) return null;
+				DirectoryReader reader = DirectoryReader.open(dir);
+				try {
+					return reader.getIndexCommit().getUserData();
+				} finally {
+					reader.close();
+				}
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @param indexDir directory of the index
+	 * @return shard directories of the index sorted by name, empty if it is not sharded
+	 */
+	private static File[] shardDirs(File indexDir) {
+		List<File> shards = new ArrayList<File>();
+		File[] files = indexDir.listFiles();
+		if (files != null) {
+			for (File f: files) {
+				if (f.isDirectory() && f.getName().startsWith(SHARD_PREFIX)) shards.add(f);
+			}
+		}
+		File[] sorted = shards.toArray(new File[shards.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	/**
+	 * @return directory of shard i
+	 */
+	private File shardDir(int i) {
+		return new File(_indexDir, SHARD_PREFIX + String.format("%02d", i));
+	}
+	
+	/**
+	 * checks that the directory holds nothing but an index - lucene files, shards and sidecars,
+	 * so rebuilding the index there does not delete anything else
+	 * @param indexDir directory of the index
+	 * @return true if the directory does not exist, is empty or looks like an index
+	 */
+	public static boolean looksLikeIndex(File indexDir) {
+		File[] files = indexDir.listFiles();
+		if (files == null) return !indexDir.exists();
+		for (File f: files) {
+			if (!isIndexFile(f)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true for lucene files, shard directories of them and CaptureIndex sidecars
+	 */
+	private static boolean isIndexFile(File f) {
+		String name = f.getName();
+		if (f.isDirectory()) return name.startsWith(SHARD_PREFIX) && looksLikeIndex(f);
+		return IndexFileNames.CODEC_FILE_PATTERN.matcher(name).matches() || name.startsWith(IndexFileNames.SEGMENTS)
+				|| name.equals(IndexWriter.WRITE_LOCK_NAME) || CaptureIndex.isSidecar(name);
+	}
+	
+	/**
+	 * deletes the index in the directory - lucene files, shards and sidecars
+	 * anything else is left where it is
+	 * @param dir the directory
+	 */
+	private static void deleteIndex(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f: files) {
+			if (!isIndexFile(f)) continue;
+			if (f.isDirectory()) deleteIndex(f);
+			if (!f.delete())
+				System.err.println("There was a problem with deleting " + f + ".");
+		}
 	}
 
 	/**
 	 * output point
 	 * searches query in indexed Documents
+	 * uses the shared searcher, so it can run while indexing
+	 * and sees documents indexed until the last refresh
 	 * @param querystr string o user's query
 	 * @return array of Result objects sorted by ranking
 	 */
 	public ArrayList<Result> search(String querystr) {
+		return search(querystr, HITS_PER_PAGE);
+	}
+	
+	/**
+	 * searches query in indexed Documents
+	 * thread safe, concurrent searches share one searcher
+	 * only the short stored fields are loaded, the text is read from the archive
+	 * by the Result when it is asked for
+	 * @param querystr string o user's query
+	 * @param hitsNo number of results
+	 * @return array of Result objects sorted by ranking, empty if the query does not parse
+	 */
+	public ArrayList<Result> search(String querystr, int hitsNo) {
 		Query query = prepareQuery(querystr);
+		if (query == null) return new ArrayList<Result>();
+		return search(query, hitsNo);
+	}
+	
+	/**
+	 * searches parsed query in indexed Documents
+	 * @param query query from parseQuery
+	 * @param hitsNo number of results
+	 * @return array of Result objects sorted by ranking
+	 */
+	public ArrayList<Result> search(Query query, int hitsNo) {
+		long startTime = System.nanoTime();
 		ArrayList<Result> results = new ArrayList<Result>();
 		try {
-			openReader();
-			_searcher.search(query, _collector);
-			ScoreDoc[] hits = _collector.topDocs().scoreDocs;
-			for (int i = 0; i < hits.length; ++i) {
-				int docId = hits[i].doc;
-				Document d = _searcher.doc(docId);
-				results.add(new Result(d, docId, hits[i].score));
-			}
-			closeReader();
+			ReferenceManager<IndexSearcher> manager = getSearcherManager();
+			if (manager == null) return results;
+			IndexSearcher searcher = manager.acquire();
+			try {
+				long generation = ShardSearcherManager.getVersion(searcher.getIndexReader());
+				QueryCache cache = _cache;
+				if (cache != null) {
+					ArrayList<Result> cached = cache.get(query, hitsNo, generation);
+					if (cached != null) return cached;
+				}
+				TopScoreDocCollector collector = TopScoreDocCollector.create(hitsNo, true);
+				searcher.search(query, collector);
+				ScoreDoc[] hits = collector.topDocs().scoreDocs;
+				List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+				BytesRef file = new BytesRef();
+				for (int i = 0; i < hits.length; ++i) {
+					int docId = hits[i].doc;
+					Document d = searcher.doc(docId, STORED_FIELDS);
+					Result result = new Result(d, docId, hits[i].score);
+					AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+					locate(result, leaf.reader(), docId - leaf.docBase, file);
+					results.add(result);
+				}
+				if (cache != null) cache.put(query, hitsNo, generation, results);
+			} finally {
+				manager.release(searcher);
+			}
 		} catch (IOException e) {
 			System.err.println("There was a problem with searching Documents.");
 			System.err.println(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			_metrics.timer("search.time").since(startTime);
 		}
 		return results;
 	}
 	
 	/**
-	 * creates Query from user's input query string
+	 * sets position of the record in archive from doc values
+	 * results of documents indexed without it have no location
+	 * @param result the hit
+	 * @param reader segment with the hit
+	 * @param doc segment docId
+	 * @param file reused buffer
+	 * @throws IOException
+	 */
+	private static void locate(Result result, AtomicReader reader, int doc, BytesRef file) throws IOException {
+		SortedDocValues files = reader.getSortedDocValues(SOURCE_FILE_FIELD);
+		NumericDocValues offsets = reader.getNumericDocValues(OFFSET_FIELD);
+		NumericDocValues lengths = reader.getNumericDocValues(LENGTH_FIELD);
+		if (files == null || offsets == null || lengths == null || files.getOrd(doc) < 0) return;
+		files.get(doc, file);
+		result.setLocation(file.utf8ToString(), offsets.get(doc), lengths.get(doc));
+	}
+	
+	/**
+	 * number of documents visible to searches
+	 * @return number of documents in the shared searcher
+	 */
+	public int numDocs() {
+		try {
+			ReferenceManager<IndexSearcher> manager = getSearcherManager();
+			if (manager == null) return 0;
+			IndexSearcher searcher = manager.acquire();
+			try {
+				return searcher.getIndexReader().numDocs();
+			} finally {
+				manager.release(searcher);
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * parses user's input query string
+	 * for callers that report bad queries themselves
 	 * @param querystr
 	 * @return Query
+	 * @throws ParseException when the query is not valid
+	 */
+	public Query parseQuery(String querystr) throws ParseException {
+		return new QueryParser(Version.LUCENE_47, DEFAULT_SEARCH_FIELD, analyzer).parse(querystr);
+	}
+	
+	/**
+	 * creates Query from user's input query string
+	 * @param querystr
+	 * @return Query or null if it does not parse
 	 */
 	private Query prepareQuery(String querystr) {
 		Query query = null;
 		try {
-			query = new QueryParser(Version.LUCENE_47, DEFAULT_SEARCH_FIELD, analyzer).parse(querystr);
-		} catch (org.apache.lucene.queryparser.classic.ParseException e) {
+			query = parseQuery(querystr);
+		} catch (ParseException e) {
 			System.err.println("There was a problem with parsing your query.");
 			System.err.println(e.getMessage());
 			e.printStackTrace();
@@ -123,47 +664,154 @@ public class Indexer implements Runnable {
 	}
 	
 	/**
-	 * opens configured IndexReader for indexing
+	 * returns the shared searcher manager
+	 * opens it on committed index (or its shards) if it's not open yet
+	 * @return searcher manager or null if there is nothing to search yet
+	 * @throws IOException
+	 */
+	private synchronized ReferenceManager<IndexSearcher> getSearcherManager() throws IOException {
+		if (_searcherManager == null) {
+			if (DirectoryReader.indexExists(_dir)) {
+				_searcherManager = new SearcherManager(_dir, null);
+			} else {
+				File[] shards = shardDirs(_indexDir);
+				if (shards.length > 0) _searcherManager = openShards(shards);
+			}
+		}
+		return _searcherManager;
+	}
+	
+	/**
+	 * opens searcher manager over committed shards
+	 * @param shards shard directories
+	 * @return searcher manager or null if some shard is not committed
 	 * @throws IOException
 	 */
-	private void openReader() throws IOException {
+	private static ShardSearcherManager openShards(File[] shards) throws IOException {
+		DirectoryReader[] readers = new DirectoryReader[shards.length];
 		try {
-			_reader = DirectoryReader.open(_dir);
-			_searcher = new IndexSearcher(_reader);
-			_collector = TopScoreDocCollector.create(HITS_PER_PAGE, true);
-		} catch (Exception e) {
-			// TODO
-			e.printStackTrace();
+			for (int i = 0; i < shards.length; i++) {
+				FSDirectory dir = FSDirectory.open(shards[i]);
+				if (!DirectoryReader.indexExists(dir)) {
+					for (int j = 0; j < i; j++) readers[j].close();
+					return null;
+				}
+				readers[i] = DirectoryReader.open(dir);
+			}
+		} catch (IOException e) {
+			for (DirectoryReader reader: readers) {
+				if (reader != null) reader.close();
+			}
+			throw e;
 		}
+		return new ShardSearcherManager(readers);
+	}
+	
+	/**
+	 * swaps shared searcher manager, closes the old one
+	 * searches holding searcher from the old one finish normally
+	 * @param manager new searcher manager
+	 * @throws IOException
+	 */
+	private synchronized void setSearcherManager(ReferenceManager<IndexSearcher> manager) throws IOException {
+		ReferenceManager<IndexSearcher> old = _searcherManager;
+		_searcherManager = manager;
+		if (old != null) old.close();
 	}
 	
 	/**
-	 * closes opened IndexReader
+	 * closes the shared searcher
 	 * @throws IOException
 	 */
-	private void closeReader() throws IOException {
-		_reader.close();
+	public void close() throws IOException {
+		setSearcherManager(null);
 	}
 	
 	/**
 	 * runs the indexer
 	 * delegates tasks (taking from queue and adding to indexwriter)
-	 * to IndexerTask threads
+	 * to IndexerTask threads, thread i writes to shard i % _shardNo
 	 */
 	@Override
 	public void run() {
-	    try {
-	    	_writer = new IndexWriter(_dir, _config);
-	    	List<Thread> threads = new ArrayList<Thread>();
-	    	for (int i = 0; i < _threadNo; i++) {
-	    		threads.add(new Thread(new IndexerTask(_writer, _queue, i)));
-	        }
-	    	for (Thread t: threads)
-	    		t.start();
-	    	for (Thread t: threads)
-	    		t.join();
-            _writer.close();
-	    } catch (IOException e) {
+		try {
+			if (_resume) {
+				System.out.println("Resuming indexing from checkpoint in " + _indexDir + ".");
+			} else if (_update) {
+				System.out.println("Updating index in " + _indexDir + ".");
+			} else {
+				// rebuilding, old index or its shards must not be picked up
+				deleteIndex(_indexDir);
+			}
+			if (_latestOnly && DirectoryReader.indexExists(_dir))
+				_existing = new IndexSearcher(DirectoryReader.open(_dir));
+			_writers = new IndexWriter[_shardNo];
+			if (_shardNo == 1) {
+				_writers[0] = new IndexWriter(_dir, createConfig());
+				setSearcherManager(new SearcherManager(_writers[0], true, null));
+			} else {
+				DirectoryReader[] readers = new DirectoryReader[_shardNo];
+				for (int i = 0; i < _shardNo; i++) {
+					_writers[i] = new IndexWriter(FSDirectory.open(shardDir(i)), createConfig());
+					readers[i] = DirectoryReader.open(_writers[i], true);
+				}
+				setSearcherManager(new ShardSearcherManager(readers));
+			}
+			Refresher refresher = new Refresher();
+			Thread refresh = new Thread(refresher);
+			refresh.setDaemon(true);
+			refresh.start();
+			Checkpointer checkpointer = new Checkpointer();
+			Thread checkpoint = new Thread(checkpointer);
+			checkpoint.setDaemon(true);
+			if (_progress != null && _checkpointMs > 0)
+				checkpoint.start();
+			_pool.start(_threadNo);
+			_pool.await();
+			refresher.stop();
+			refresh.join();
+			checkpointer.stop();
+			if (checkpoint.isAlive()) {
+				checkpoint.interrupt();
+				checkpoint.join();
+			}
+			if (_existing != null) {
+				_existing.getIndexReader().close();
+				_existing = null;
+			}
+			if (_latestOnly)
+				System.out.println("Skipped " + _olderCaptures.get() + " older captures of indexed urls.");
+			if (_nearDuplicates != null)
+				System.out.println(_nearDuplicates.getStats() + (_markDuplicates
+						? " Indexed as pointers to canonical pages." : " Skipped."));
+			long failures = _metrics.counter("index.failures").get();
+			long readFailures = _metrics.counter("read.failures").get();
+			if ((failures > 0 || readFailures > 0) && _progress != null) {
+				// failed records and ranges hold their checkpoints back, the archive is not complete
+				checkpoint();
+				setSearcherManager(new SearcherManager(_dir, null));
+				_writers[0].close();
+				System.err.println("Failed to read " + readFailures + " ranges and to index " + failures
+						+ " records, the index is committed as a checkpoint, index --resume retries them.");
+			} else if (_shardNo == 1) {
+				commit(_writers[0], null);
+				// switch searches from the writer to the committed index
+				setSearcherManager(new SearcherManager(_dir, null));
+				_writers[0].close();
+			} else if (_mergeShards) {
+				mergeShards();
+			} else {
+				for (IndexWriter writer: _writers) {
+					commit(writer, String.valueOf(_shardNo));
+					writer.close();
+				}
+				setSearcherManager(openShards(shardDirs(_indexDir)));
+			}
+			if ((failures > 0 || readFailures > 0) && _progress == null)
+				System.err.println("Failed to read " + readFailures + " ranges and to index " + failures
+						+ " records, without checkpoints they are not retried.");
+			writeCaptures();
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		} catch (InterruptedException e) {
@@ -172,6 +820,251 @@ public class Indexer implements Runnable {
 		}
 	}
 	
+	/**
+	 * writes CaptureIndex sidecar of the committed index
+	 * @throws IOException
+	 */
+	public void writeCaptures() throws IOException {
+		long startTime = System.nanoTime();
+		ReferenceManager<IndexSearcher> manager = getSearcherManager();
+		if (manager == null) return;
+		IndexSearcher searcher = manager.acquire();
+		try {
+			int n = CaptureIndex.build(searcher.getIndexReader(), _indexDir);
+			System.out.println("Capture index of " + n + " records written in "
+					+ (System.nanoTime() - startTime) / 1000000000.0 + "s.");
+		} finally {
+			manager.release(searcher);
+		}
+	}
+	
+	/**
+	 * marks the index as complete
+	 * @param writer writer of the index
+	 * @param shards number of shards for kept shards, null for plain index
+	 * @throws IOException
+	 */
+	private void commit(IndexWriter writer, String shards) throws IOException {
+		Map<String, String> commitData = new HashMap<String, String>();
+		commitData.put(ARCHIVE_KEY, _archives != null ? _archives + "\n" + _archiveId : _archiveId);
+		if (shards != null) commitData.put(SHARDS_KEY, shards);
+		writer.setCommitData(commitData);
+		writer.commit();
+	}
+	
+	/**
+	 * merges finished shards into the index directory with addIndexes
+	 * segments are copied, not reindexed, shards are deleted afterwards
+	 * @throws IOException
+	 */
+	private void mergeShards() throws IOException {
+		long startTime = System.nanoTime();
+		Directory[] shards = new Directory[_shardNo];
+		for (int i = 0; i < _shardNo; i++) {
+			_writers[i].close();
+			shards[i] = _writers[i].getDirectory();
+		}
+		IndexWriter writer = new IndexWriter(_dir, createConfig());
+		writer.addIndexes(shards);
+		commit(writer, null);
+		writer.close();
+		setSearcherManager(new SearcherManager(_dir, null));
+		for (int i = 0; i < _shardNo; i++) {
+			shards[i].close();
+			deleteIndex(shardDir(i));
+			shardDir(i).delete();
+		}
+		System.out.println("Merged " + _shardNo + " shards in " + (System.nanoTime() - startTime) / 1000000000.0 + "s.");
+	}
+	
+	/**
+	 * commits indexed documents with checkpoint of the progress
+	 * the checkpoint is taken before the commit, so everything before it is committed
+	 * @throws IOException
+	 */
+	private void checkpoint() throws IOException {
+		Map<String, String> commitData = new HashMap<String, String>();
+		// archives of updated index stay complete
+		if (_archives != null) commitData.put(ARCHIVE_KEY, _archives);
+		commitData.put(PARTIAL_KEY, _archiveId);
+		commitData.put(PROGRESS_KEY, _progress.save());
+		_writers[0].setCommitData(commitData);
+		_writers[0].commit();
+	}
+	
+	/**
+	 * indexes the capture unless there is a later capture of its url
+	 * replaces all earlier captures of the url (and the record itself if it is indexed)
+	 * updates of one url are serialized, so the latest capture wins whatever the order
+	 * @param writer writer of the index
+	 * @param rec the capture
+	 * @param doc document of the capture
+	 * @throws IOException
+	 */
+	private void addLatest(IndexWriter writer, PageRecord rec, Document doc) throws IOException {
+		String url = rec.getTargetUri();
+		String date = rec.getDate() != null ? rec.getDate() : "";
+		synchronized (_urlLocks[(url.hashCode() & 0x7fffffff) % _urlLocks.length]) {
+			String latest = _latest.get(url);
+			if (latest == null) latest = existingDate(url);
+			// WARC-Date is ISO 8601, compares as string
+			if (latest != null && latest.compareTo(date) >= 0) {
+				_olderCaptures.incrementAndGet();
+				return;
+			}
+			writer.updateDocument(new Term("targetUri", url), doc);
+			_latest.put(url, date);
+		}
+	}
+	
+	/**
+	 * finds the latest capture date of url in the index as it was before this run
+	 * @param url WARC-Target-URI
+	 * @return the date or null if the url is not indexed
+	 * @throws IOException
+	 */
+	private String existingDate(String url) throws IOException {
+		if (_existing == null) return null;
+		ScoreDoc[] hits = _existing.search(new TermQuery(new Term("targetUri", url)), MAX_CAPTURES).scoreDocs;
+		String latest = null;
+		for (ScoreDoc hit: hits) {
+			String date = _existing.doc(hit.doc, Collections.singleton("date")).get("date");
+			if (date == null) date = "";
+			if (latest == null || date.compareTo(latest) > 0) latest = date;
+		}
+		return latest;
+	}
+	
+	/**
+	 * runnable Checkpointer class periodically commits the index
+	 * with checkpoint, so interrupted indexing does not start over
+	 */
+	private class Checkpointer implements Runnable {
+		
+		private volatile boolean _running = true;
+		
+		/**
+		 * stops the checkpoints
+		 */
+		public void stop() {
+			_running = false;
+		}
+		
+		/**
+		 * commits every _checkpointMs until stopped
+		 */
+		@Override
+		public void run() {
+			while (_running) {
+				try {
+					Thread.sleep(_checkpointMs);
+					if (_running) {
+						long startTime = System.nanoTime();
+						checkpoint();
+						System.out.println("INFO: Checkpoint committed in "
+								+ (System.nanoTime() - startTime) / 1000000 + "ms.");
+					}
+				} catch (IOException e) {
+					System.err.println("There was a problem with committing the checkpoint.");
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * runnable Refresher class periodically reopens the shared searcher
+	 * from the live writer, so searches see documents indexed so far
+	 */
+	private class Refresher implements Runnable {
+		
+		private volatile boolean _running = true;
+		
+		/**
+		 * stops the refreshing
+		 */
+		public void stop() {
+			_running = false;
+		}
+		
+		/**
+		 * refreshes every _refreshMs until stopped
+		 */
+		@Override
+		public void run() {
+			while (_running) {
+				try {
+					Thread.sleep(_refreshMs);
+					if (_running) _searcherManager.maybeRefresh();
+				} catch (IOException e) {
+					System.err.println("There was a problem with refreshing the searcher.");
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * merge scheduler timing every merge of the writer in index.merge.time
+	 * and counting merged documents in index.merge.docs
+	 */
+	private class TimedMergeScheduler extends ConcurrentMergeScheduler {
+		
+		@Override
+		protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+			long startTime = System.nanoTime();
+			try {
+				super.doMerge(merge);
+			} finally {
+				_metrics.timer("index.merge.time").since(startTime);
+				_metrics.counter("index.merge.docs").add(merge.totalDocCount);
+			}
+		}
+		
+	}
+	
+	/**
+	 * InfoStream of the writers timing segment flushes in index.flush.time
+	 * lucene logs start and end of the flush from the flushing thread,
+	 * other messages are disabled and never built
+	 */
+	private class FlushTimer extends InfoStream {
+		
+		/** lucene component of flush messages */
+		private static final String COMPONENT = "DWPT";
+		
+		private final ThreadLocal<Long> _flushStart = new ThreadLocal<Long>();
+		
+		@Override
+		public void message(String component, String message) {
+			if (message.startsWith("flush postings as segment")) {
+				_flushStart.set(System.nanoTime());
+			} else if (message.startsWith("flushed: segment=")) {
+				Long startTime = _flushStart.get();
+				if (startTime != null) {
+					_metrics.timer("index.flush.time").since(startTime);
+					_flushStart.remove();
+				}
+			}
+		}
+		
+		@Override
+		public boolean isEnabled(String component) {
+			return COMPONENT.equals(component);
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+	}
+	
 	/**
 	 * runnable IndexerTask class for executing the heavy stuff
 	 * - taking produced records from queue and adding them to indexwriter
@@ -179,9 +1072,17 @@ public class Indexer implements Runnable {
 	private class IndexerTask implements Runnable {
 
 		private IndexWriter _writer;
-		private LinkedBlockingQueue<ExtendedWarcRecord> _queue;
+		private RecordQueue<PageRecord> _queue;
 		private int _threadNumber;
 		
+		/** document reused for all records of this thread */
+		private final DocumentTemplate _template = new DocumentTemplate();
+		
+		/** indexed and failed records and time spent adding them (analysis included) */
+		private final Metrics.Counter _indexRecords = _metrics.counter("index.records");
+		private final Metrics.Counter _indexFailures = _metrics.counter("index.failures");
+		private final Metrics.Timer _indexTime = _metrics.timer("index.time");
+		
 		/**
 		 * constructor
 		 * sets up reference to opened indexwriter and queue
@@ -190,32 +1091,84 @@ public class Indexer implements Runnable {
 		 * @param queue
 		 * @param threadNumber
 		 */
-		public IndexerTask(IndexWriter writer, LinkedBlockingQueue<ExtendedWarcRecord> queue, int threadNumber) {
+		public IndexerTask(IndexWriter writer, RecordQueue<PageRecord> queue, int threadNumber) {
 			_writer = writer;
 			_queue = queue;
 			_threadNumber = threadNumber;
 		}
 		
+		/**
+		 * adds the record to the index
+		 * records that might be indexed before the checkpoint of resumed indexing
+		 * replace the document with the same WARC-Record-ID, so they are not duplicated
+		 * near-duplicates are skipped or their text is left out
+		 * @param rec the record
+		 * @throws IOException
+		 */
+		private void add(PageRecord rec) throws IOException {
+			if (_nearDuplicates != null && rec.getFingerprint() != NearDuplicates.NO_FINGERPRINT) {
+				String canonical = _nearDuplicates.check(rec.getFingerprint(), rec.getRecordId());
+				if (canonical != null) {
+					if (!_markDuplicates) return;
+					rec.setDuplicateOf(canonical);
+				}
+			}
+			Document doc = _template.fill(rec);
+			if (_latestOnly && rec.getTargetUri() != null) {
+				addLatest(_writer, rec, doc);
+			} else if (rec.getRecordId() != null && (_update || (_resume && rec.getRange() >= 0
+					&& _progress.mayBeIndexed(rec.getRange(), rec.getOffset())))) {
+				_writer.updateDocument(new Term("recordId", rec.getRecordId()), doc);
+			} else {
+				_writer.addDocument(doc);
+			}
+		}
+		
 		/**
 		 * the heavy duty
 		 */
 		@Override
 		public void run() {
+			long allocated = JvmStats.threadAllocatedBytes();
+			boolean retired = false;
 			int i = 0;
-			while (true) {
-				try {
-					ExtendedWarcRecord rec = _queue.take();
-					if (rec.isTerminator()) break;
-					_writer.addDocument(rec.getLuceneDocument());
+			try {
+				while (true) {
+					if (_pool.retire()) {
+						retired = true;
+						break;
+					}
+					PageRecord rec = _queue.take();
+					if (rec == null) break;
+					long startTime = System.nanoTime();
+					try {
+						add(rec);
+						_indexRecords.increment();
+						// failed record stays in flight, so checkpoints stop before it and resume retries it
+						if (_progress != null && rec.getRange() >= 0)
+							_progress.indexed(rec.getRange(), rec.getOffset());
+					} catch (IOException e) {
+						_indexFailures.increment();
+						System.err.println("There was a problem with indexing record " + rec.getRecordId() + ".");
+						e.printStackTrace();
+					} catch (RuntimeException e) {
+						// the thread has to go on, the pool waits for it to see the end of the queue
+						_indexFailures.increment();
+						System.err.println("There was a problem with indexing record " + rec.getRecordId() + ", skipping it.");
+						e.printStackTrace();
+					} finally {
+						_indexTime.since(startTime);
+						_processedNo.incrementAndGet();
+					}
 					if (++i%1000==0)
 						System.out.println("INFO: Thread#"+_threadNumber+" processed " + i);
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
 				}
+			} catch (InterruptedException e) {
+				// the pipeline is being torn down
+				Thread.currentThread().interrupt();
+			} finally {
+				if (allocated >= 0) _allocated.addAndGet(JvmStats.threadAllocatedBytes() - allocated);
+				if (!retired) _pool.done();
 			}
 		}
 		
@@ -0,0 +1,70 @@
+package warcsearch;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * JvmStats reads garbage collection and allocation counters of the JVM
+ * for reporting GC churn of the indexing pipeline
+ * allocated bytes are counted per thread by HotSpot (com.sun.management),
+ * other JVMs report -1
+ */
+public class JvmStats {
+
+	/**
+	 * @return bytes allocated by the calling thread so far, -1 if not supported
+	 */
+	public static long threadAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+			if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of collections of all collectors so far
+	 */
+	public static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	/**
+	 * @return time spent in all collectors so far in ms
+	 */
+	public static long gcTimeMs() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+
+	/**
+	 * @return cpu time used by the whole process so far in ns, -1 if not supported
+	 */
+	public static long processCpuTimeNs() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+
+	/**
+	 * formats allocation rate
+	 * @param allocated allocated bytes, negative if not known
+	 * @param records number of records
+	 * @return kB per record
+	 */
+	public static String perRecord(long allocated, long records) {
+		if (allocated < 0) return "unknown";
+		return (records > 0 ? Math.round(allocated * 10.0 / 1024 / records) / 10.0 : 0.0) + "kB/record";
+	}
+
+}
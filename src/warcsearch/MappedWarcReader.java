@@ -0,0 +1,243 @@
+package warcsearch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * MappedWarcReader reads WARC records straight from memory mapped archive
+ * replaces the WARC library stream reader and its copying
+ * headers are parsed from the mapped bytes, only the fields we index
+ * are decoded to Strings, payload is a slice of the mapping (no copy)
+ * the archive is mapped in windows, window is remapped when a record
+ * does not fit into the rest of it
+ * not thread safe, every reading thread should have its own reader
+ */
+public class MappedWarcReader implements WarcRecordReader {
+	
+	/** default size of mapped window */
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	/** header values are ascii/utf-8, we decode just a few of them */
+	private static final Charset HEADER_CHARSET = Charset.forName("UTF-8");
+	
+	/** record version line prefix */
+	private static final byte[] VERSION_PREFIX = "WARC/".getBytes();
+	
+	/** warc headers we care about */
+	private static final byte[] CONTENT_LENGTH = "Content-Length".getBytes();
+	private static final byte[][] HEADER_NAMES = new byte[][] {
+		"WARC-Type".getBytes(),
+		"WARC-Record-ID".getBytes(),
+		"WARC-Target-URI".getBytes(),
+		"WARC-Date".getBytes(),
+		"WARC-TREC-ID".getBytes(),
+	};
+	
+	/** archive channel */
+	private final FileChannel _channel;
+	
+	/** length of the archive */
+	private final long _length;
+	
+	/** records starting at or after this offset are not read */
+	private final long _end;
+	
+	/** file offset of the next record */
+	private long _pos;
+	
+	/** currently mapped window and its file offset */
+	private MappedByteBuffer _window;
+	private long _windowStart;
+	
+	/**
+	 * constructor
+	 * @param channel opened archive channel
+	 * @param start offset of the first record to read
+	 * @param end records starting at or after this offset are left for others
+	 * @throws IOException
+	 */
+	public MappedWarcReader(FileChannel channel, long start, long end) throws IOException {
+		_channel = channel;
+		_length = channel.size();
+		_end = Math.min(end, _length);
+		_pos = start;
+	}
+	
+	/**
+	 * reads next record of the range
+	 * @return the record or null if there are no more records in range
+	 * @throws IOException when the archive is broken
+	 */
+	@Override
+	public ExtendedWarcRecord next() throws IOException {
+		int size = WINDOW_SIZE;
+		while (true) {
+			if (_pos >= _end) return null;
+			if (_window == null || _pos < _windowStart || _pos - _windowStart >= _window.limit()) {
+				map(_pos, size);
+			}
+			ByteBuffer buf = _window.duplicate();
+			buf.position((int) (_pos - _windowStart));
+			ExtendedWarcRecord rec = parseRecord(buf, _windowStart);
+			if (rec != null) {
+				if (rec.getOffset() >= _end) return null;
+				_pos = _windowStart + buf.position();
+				return rec;
+			} else if (_windowStart + _window.limit() >= _length) {
+				if (isBlank(buf)) return null;
+				throw new IOException("Truncated WARC record at offset " + _pos + ".");
+			}
+			// record does not fit, map bigger window starting at it
+			if (_windowStart == _pos && _window.limit() == Integer.MAX_VALUE)
+				throw new IOException("WARC record at offset " + _pos + " does not fit into 2GB window.");
+			if (_windowStart == _pos) size = (int) Math.min(Integer.MAX_VALUE, size * 2L);
+			map(_pos, size);
+		}
+	}
+	
+	/**
+	 * maps new window of the archive
+	 * @param start file offset of the window
+	 * @param size requested window size
+	 * @throws IOException
+	 */
+	private void map(long start, int size) throws IOException {
+		_windowStart = start;
+		_window = _channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size, _length - start));
+	}
+	
+	/**
+	 * parses one WARC record from given buffer starting at its position
+	 * on success the buffer is positioned right after the record block
+	 * @param buf buffer with the record
+	 * @param bufOffset file offset of the buffer start (for record offsets)
+	 * @return parsed record with payload sliced from buf
+	 *         or null if the buffer ends before the record does
+	 * @throws IOException when there is no WARC record at the position
+	 *         or the record is bigger than a buffer can hold (2GB)
+	 */
+	public static ExtendedWarcRecord parseRecord(ByteBuffer buf, long bufOffset) throws IOException {
+		int pos = buf.position();
+		int limit = buf.limit();
+		// skip empty lines closing the previous record
+		while (pos < limit && (buf.get(pos) == '\r' || buf.get(pos) == '\n')) pos++;
+		if (limit - pos < VERSION_PREFIX.length) return null;
+		int start = pos;
+		if (!matches(buf, pos, VERSION_PREFIX, false))
+			throw new IOException("No WARC record at offset " + (bufOffset + pos) + ".");
+		String[] values = new String[HEADER_NAMES.length];
+		long contentLength = -1;
+		// version line
+		pos = lineEnd(buf, pos, limit);
+		if (pos < 0) return null;
+		// header lines until empty line
+		while (true) {
+			int eol = lineEnd(buf, pos, limit);
+			if (eol < 0) return null;
+			int lineLimit = eol;
+			while (lineLimit > pos && (buf.get(lineLimit - 1) == '\n' || buf.get(lineLimit - 1) == '\r'))
+				lineLimit--;
+			if (lineLimit == pos) {
+				pos = eol;
+				break;
+			}
+			int colon = pos;
+			while (colon < lineLimit && buf.get(colon) != ':') colon++;
+			if (colon < lineLimit) {
+				int nameLength = colon - pos;
+				if (nameLength == CONTENT_LENGTH.length && matches(buf, pos, CONTENT_LENGTH, true)) {
+					contentLength = parseLong(buf, colon + 1, lineLimit);
+				} else {
+					for (int h = 0; h < HEADER_NAMES.length; h++) {
+						if (nameLength == HEADER_NAMES[h].length && matches(buf, pos, HEADER_NAMES[h], true)) {
+							values[h] = decode(buf, colon + 1, lineLimit);
+							break;
+						}
+					}
+				}
+			}
+			pos = eol;
+		}
+		if (contentLength < 0)
+			throw new IOException("Missing Content-Length in WARC record at offset " + (bufOffset + start) + ".");
+		if (contentLength > Integer.MAX_VALUE - (pos - start))
+			throw new IOException("WARC record at offset " + (bufOffset + start) + " is too big (" + contentLength
+					+ " bytes), records over 2GB are not supported.");
+		if (limit - pos < contentLength) return null;
+		ByteBuffer payload = buf.duplicate();
+		payload.position(pos);
+		payload.limit(pos + (int) contentLength);
+		buf.position(pos + (int) contentLength);
+		return new ExtendedWarcRecord(values[0], values[1], values[2], values[3], values[4],
+				payload.slice(), bufOffset + start, pos + contentLength - start);
+	}
+	
+	/**
+	 * @return index right after the end of line starting at pos, -1 if there is none
+	 */
+	private static int lineEnd(ByteBuffer buf, int pos, int limit) {
+		for (int i = pos; i < limit; i++) {
+			if (buf.get(i) == '\n') return i + 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * compares bytes with the pattern
+	 * @param ignoreCase for header names, which are case insensitive
+	 * @return true if buf contains pattern at given position
+	 */
+	private static boolean matches(ByteBuffer buf, int pos, byte[] pattern, boolean ignoreCase) {
+		for (int j = 0; j < pattern.length; j++) {
+			byte b = buf.get(pos + j);
+			if (b != pattern[j]
+					&& !(ignoreCase && Character.toLowerCase((char) b) == Character.toLowerCase((char) pattern[j])))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * decodes trimmed header value
+	 */
+	private static String decode(ByteBuffer buf, int from, int to) {
+		while (from < to && buf.get(from) == ' ') from++;
+		while (to > from && buf.get(to - 1) == ' ') to--;
+		ByteBuffer value = buf.duplicate();
+		value.limit(to);
+		value.position(from);
+		return HEADER_CHARSET.decode(value).toString();
+	}
+	
+	/**
+	 * parses decimal number of header value without decoding it
+	 */
+	private static long parseLong(ByteBuffer buf, int from, int to) throws IOException {
+		long value = 0;
+		boolean digits = false;
+		for (int i = from; i < to; i++) {
+			byte b = buf.get(i);
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digits = true;
+			} else if (b != ' ' && b != '\t') {
+				throw new IOException("Bad Content-Length in WARC record.");
+			}
+		}
+		return digits ? value : -1;
+	}
+	
+	/**
+	 * @return true if there are only line ends left in buffer
+	 */
+	public static boolean isBlank(ByteBuffer buf) {
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			if (buf.get(i) != '\r' && buf.get(i) != '\n') return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,285 @@
+package warcsearch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics is registry of named counters, timers and gauges of one index
+ * stages of the pipeline count records and bytes and time their work per record,
+ * lucene flushes and merges and searches are timed too
+ * metrics are created on first use and live as long as the registry,
+ * names are dotted, stage first (read.bytes, parse.time, index.time, search.time)
+ * MetricsReporter prints them and exports them as JSON or CSV
+ * thread safe, recording takes no locks
+ */
+public class Metrics {
+
+	/**
+	 * value sampled at report time (queue depth, pool size)
+	 */
+	public interface Gauge {
+
+		/**
+		 * @return current value
+		 */
+		public long get();
+
+	}
+
+	/**
+	 * monotonic count of events or bytes
+	 */
+	public static class Counter {
+
+		private final AtomicLong _count = new AtomicLong();
+
+		/**
+		 * @param n added amount
+		 */
+		public void add(long n) {
+			_count.addAndGet(n);
+		}
+
+		public void increment() {
+			_count.incrementAndGet();
+		}
+
+		/**
+		 * @return total so far
+		 */
+		public long get() {
+			return _count.get();
+		}
+
+	}
+
+	/**
+	 * durations with log-linear histogram for percentiles
+	 * bucket of duration is its highest bit and SUB_BITS bits below it,
+	 * so percentiles are within 1/2^SUB_BITS of the real value
+	 */
+	public static class Timer {
+
+		private static final int SUB_BITS = 2;
+		private static final int BUCKETS = 64 << SUB_BITS;
+
+		private final AtomicLong _count = new AtomicLong();
+		private final AtomicLong _totalNs = new AtomicLong();
+		private final AtomicLong _maxNs = new AtomicLong();
+		private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+
+		/**
+		 * @param ns duration in ns
+		 */
+		public void record(long ns) {
+			if (ns < 0) ns = 0;
+			_count.incrementAndGet();
+			_totalNs.addAndGet(ns);
+			_buckets.incrementAndGet(bucket(ns));
+			long max;
+			while (ns > (max = _maxNs.get()) && !_maxNs.compareAndSet(max, ns));
+		}
+
+		/**
+		 * records duration since start
+		 * @param startNs System.nanoTime() at the start
+		 */
+		public void since(long startNs) {
+			record(System.nanoTime() - startNs);
+		}
+
+		private static int bucket(long ns) {
+			if (ns < (1 << SUB_BITS)) return (int) ns;
+			int bit = 63 - Long.numberOfLeadingZeros(ns);
+			int sub = (int) (ns >>> (bit - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+			return ((bit - SUB_BITS + 1) << SUB_BITS) + sub;
+		}
+
+		/**
+		 * @return upper bound of durations in the bucket
+		 */
+		private static long bound(int bucket) {
+			if (bucket < (1 << SUB_BITS)) return bucket;
+			int bit = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+			long sub = bucket & ((1 << SUB_BITS) - 1);
+			return ((((long) 1 << SUB_BITS) + sub + 1) << (bit - SUB_BITS)) - 1;
+		}
+
+		/**
+		 * @return number of recorded durations
+		 */
+		public long getCount() {
+			return _count.get();
+		}
+
+		/**
+		 * @return sum of recorded durations in ns
+		 */
+		public long getTotalNs() {
+			return _totalNs.get();
+		}
+
+		/**
+		 * @return longest recorded duration in ns
+		 */
+		public long getMaxNs() {
+			return _maxNs.get();
+		}
+
+		/**
+		 * @return mean duration in ns
+		 */
+		public double getMeanNs() {
+			long count = _count.get();
+			return count > 0 ? (double) _totalNs.get() / count : 0;
+		}
+
+		/**
+		 * nearest-rank percentile from the histogram
+		 * @param p percentile (0..1]
+		 * @return upper bound of the bucket with the percentile in ns, never above max
+		 */
+		public long getPercentileNs(double p) {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				count += _buckets.get(i);
+			if (count == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += _buckets.get(i);
+				if (seen >= rank) return Math.min(bound(i), _maxNs.get());
+			}
+			return _maxNs.get();
+		}
+
+	}
+
+	private final ConcurrentSkipListMap<String, Counter> _counters = new ConcurrentSkipListMap<String, Counter>();
+	private final ConcurrentSkipListMap<String, Timer> _timers = new ConcurrentSkipListMap<String, Timer>();
+	private final ConcurrentSkipListMap<String, Gauge> _gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	/**
+	 * @param name name of the counter
+	 * @return the counter, created if needed
+	 */
+	public Counter counter(String name) {
+		Counter counter = _counters.get(name);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = _counters.putIfAbsent(name, created);
+			if (counter == null) counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * @param name name of the timer
+	 * @return the timer, created if needed
+	 */
+	public Timer timer(String name) {
+		Timer timer = _timers.get(name);
+		if (timer == null) {
+			Timer created = new Timer();
+			timer = _timers.putIfAbsent(name, created);
+			if (timer == null) timer = created;
+		}
+		return timer;
+	}
+
+	/**
+	 * registers gauge, replaces gauge of the same name
+	 * @param name name of the gauge
+	 * @param gauge the gauge
+	 */
+	public void gauge(String name, Gauge gauge) {
+		_gauges.put(name, gauge);
+	}
+
+	/**
+	 * registers depth of the queue as gauges queue.name.records and queue.name.bytes
+	 * @param name name of the queue
+	 * @param queue the queue
+	 */
+	public void gauge(String name, final RecordQueue<?> queue) {
+		gauge("queue." + name + ".records", new Gauge() {
+			@Override
+			public long get() {
+				return queue.size();
+			}
+		});
+		gauge("queue." + name + ".bytes", new Gauge() {
+			@Override
+			public long get() {
+				return queue.getBytes();
+			}
+		});
+	}
+
+	/**
+	 * @return counters sorted by name
+	 */
+	public Map<String, Counter> getCounters() {
+		return _counters;
+	}
+
+	/**
+	 * @return timers sorted by name
+	 */
+	public Map<String, Timer> getTimers() {
+		return _timers;
+	}
+
+	/**
+	 * @return gauges sorted by name
+	 */
+	public Map<String, Gauge> getGauges() {
+		return _gauges;
+	}
+
+	/**
+	 * @return current values as JSON object
+	 */
+	public String getJsonStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"counters\":{");
+		boolean first = true;
+		for (Map.Entry<String, Counter> e: _counters.entrySet()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('"').append(e.getKey()).append("\":").append(e.getValue().get());
+		}
+		sb.append("},\"timers\":{");
+		first = true;
+		for (Map.Entry<String, Timer> e: _timers.entrySet()) {
+			if (!first) sb.append(',');
+			first = false;
+			Timer t = e.getValue();
+			sb.append('"').append(e.getKey()).append("\":{\"count\":").append(t.getCount())
+					.append(",\"totalMs\":").append(ms(t.getTotalNs()))
+					.append(",\"meanMs\":").append(ms(t.getMeanNs()))
+					.append(",\"p50Ms\":").append(ms(t.getPercentileNs(0.50)))
+					.append(",\"p99Ms\":").append(ms(t.getPercentileNs(0.99)))
+					.append(",\"maxMs\":").append(ms(t.getMaxNs())).append('}');
+		}
+		sb.append("},\"gauges\":{");
+		first = true;
+		for (Map.Entry<String, Gauge> e: _gauges.entrySet()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('"').append(e.getKey()).append("\":").append(e.getValue().get());
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+
+	/**
+	 * @return ns in ms rounded to 3 decimals
+	 */
+	static double ms(double ns) {
+		return Math.round(ns / 1000.0) / 1000.0;
+	}
+
+}
@@ -0,0 +1,181 @@
+package warcsearch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MetricsReporter reports Metrics every interval until stopped, and once more at the end
+ * console report has one line per metric, counters with their rate since the last report
+ * (since the start in the totals at the end of the run)
+ * file export is chosen by extension of the file:
+ * - .csv - rows timeMs,metric,field,value, same columns whatever metrics there are
+ * - anything else - JSON lines, one object with all metrics per report
+ * the file is rewritten by every run
+ */
+public class MetricsReporter implements Runnable {
+
+	/** default interval between two reports */
+	public static final long DEFAULT_INTERVAL_MS = 5000;
+
+	private final Metrics _metrics;
+	private final long _intervalMs;
+
+	/** print reports to the console */
+	private final boolean _console;
+
+	/** export file, null if not exported */
+	private final File _file;
+	private final boolean _csv;
+	private PrintWriter _out;
+
+	/** time of the first and the last report and counter values then */
+	private final long _startTime = System.nanoTime();
+	private long _lastTime = _startTime;
+	private final Map<String, Long> _last = new HashMap<String, Long>();
+
+	private volatile boolean _running = true;
+
+	/**
+	 * constructor
+	 * @param metrics reported metrics
+	 * @param intervalMs interval between two reports
+	 * @param console print reports to the console
+	 * @param file export file (.csv or JSON lines), null if not exported
+	 */
+	public MetricsReporter(Metrics metrics, long intervalMs, boolean console, File file) {
+		_metrics = metrics;
+		_intervalMs = intervalMs;
+		_console = console;
+		_file = file;
+		_csv = file != null && file.getName().toLowerCase().endsWith(".csv");
+	}
+
+	/**
+	 * stops the reporting
+	 */
+	public void stop() {
+		_running = false;
+	}
+
+	/**
+	 * reports every _intervalMs until stopped
+	 */
+	@Override
+	public void run() {
+		while (_running) {
+			try {
+				Thread.sleep(_intervalMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (_running) report();
+		}
+	}
+
+	/**
+	 * reports current values, counter rates since the last report
+	 */
+	public void report() {
+		report(false);
+	}
+
+	/**
+	 * reports current values, counter rates since the start
+	 * for the last report of the run
+	 */
+	public void reportTotals() {
+		report(true);
+	}
+
+	/**
+	 * reports current values
+	 * @param totals true for counter rates since the start, false for rates since the last report
+	 */
+	private synchronized void report(boolean totals) {
+		if (totals) _last.clear();
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-9, (now - (totals ? _startTime : _lastTime)) / 1000000000.0);
+		long timeMs = System.currentTimeMillis();
+		if (_console) {
+			for (Map.Entry<String, Metrics.Counter> e: _metrics.getCounters().entrySet()) {
+				long value = e.getValue().get();
+				Long last = _last.get(e.getKey());
+				long rate = Math.round((value - (last != null ? last : 0)) / seconds);
+				System.out.println("INFO: Metric " + e.getKey() + " " + value + " (" + rate + "/s)");
+			}
+			for (Map.Entry<String, Metrics.Timer> e: _metrics.getTimers().entrySet()) {
+				Metrics.Timer t = e.getValue();
+				System.out.println("INFO: Metric " + e.getKey() + " " + t.getCount() + " times, total "
+						+ Metrics.ms(t.getTotalNs()) + "ms, mean " + Metrics.ms(t.getMeanNs()) + "ms, p50 "
+						+ Metrics.ms(t.getPercentileNs(0.50)) + "ms, p99 " + Metrics.ms(t.getPercentileNs(0.99))
+						+ "ms, max " + Metrics.ms(t.getMaxNs()) + "ms");
+			}
+			for (Map.Entry<String, Metrics.Gauge> e: _metrics.getGauges().entrySet())
+				System.out.println("INFO: Metric " + e.getKey() + " " + e.getValue().get());
+		}
+		if (_file != null) {
+			try {
+				export(timeMs, seconds);
+			} catch (IOException e) {
+				System.err.println("There was a problem with writing metrics to " + _file + ".");
+				e.printStackTrace();
+			}
+		}
+		for (Map.Entry<String, Metrics.Counter> e: _metrics.getCounters().entrySet())
+			_last.put(e.getKey(), e.getValue().get());
+		_lastTime = now;
+	}
+
+	/**
+	 * appends current values to the export file, opens it with the first report
+	 */
+	private void export(long timeMs, double seconds) throws IOException {
+		if (_out == null) {
+			_out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(_file), "UTF-8"));
+			if (_csv) _out.println("timeMs,metric,field,value");
+		}
+		long uptimeMs = (System.nanoTime() - _startTime) / 1000000;
+		if (_csv) {
+			_out.println(timeMs + ",uptime,ms," + uptimeMs);
+			for (Map.Entry<String, Metrics.Counter> e: _metrics.getCounters().entrySet()) {
+				long value = e.getValue().get();
+				Long last = _last.get(e.getKey());
+				_out.println(timeMs + "," + e.getKey() + ",count," + value);
+				_out.println(timeMs + "," + e.getKey() + ",rate," + Math.round((value - (last != null ? last : 0)) / seconds));
+			}
+			for (Map.Entry<String, Metrics.Timer> e: _metrics.getTimers().entrySet()) {
+				Metrics.Timer t = e.getValue();
+				_out.println(timeMs + "," + e.getKey() + ",count," + t.getCount());
+				_out.println(timeMs + "," + e.getKey() + ",totalMs," + Metrics.ms(t.getTotalNs()));
+				_out.println(timeMs + "," + e.getKey() + ",meanMs," + Metrics.ms(t.getMeanNs()));
+				_out.println(timeMs + "," + e.getKey() + ",p50Ms," + Metrics.ms(t.getPercentileNs(0.50)));
+				_out.println(timeMs + "," + e.getKey() + ",p99Ms," + Metrics.ms(t.getPercentileNs(0.99)));
+				_out.println(timeMs + "," + e.getKey() + ",maxMs," + Metrics.ms(t.getMaxNs()));
+			}
+			for (Map.Entry<String, Metrics.Gauge> e: _metrics.getGauges().entrySet())
+				_out.println(timeMs + "," + e.getKey() + ",value," + e.getValue().get());
+		} else {
+			String json = _metrics.getJsonStats();
+			_out.println("{\"timeMs\":" + timeMs + ",\"uptimeMs\":" + uptimeMs + "," + json.substring(1));
+		}
+		_out.flush();
+		if (_out.checkError())
+			throw new IOException("Metrics file " + _file + " can not be written.");
+	}
+
+	/**
+	 * closes the export file
+	 */
+	public synchronized void close() {
+		if (_out != null) {
+			_out.close();
+			_out = null;
+		}
+	}
+
+}
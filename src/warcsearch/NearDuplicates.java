@@ -0,0 +1,221 @@
+package warcsearch;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * NearDuplicates detects mirrored and boilerplate-identical pages while indexing
+ * every page text gets 64 bit SimHash fingerprint of its word 3-shingles,
+ * pages with fingerprints at most MAX_DISTANCE bits apart are near-duplicates
+ * fingerprints of canonical pages are kept in a banded table - the fingerprint is cut
+ * into MAX_DISTANCE + 1 bands of 16 bits, near-duplicates share at least one band exactly,
+ * so lookup compares only fingerprints from the buckets of its own bands
+ * buckets grow by doubling under their own lock, lookups take no locks
+ * (two near-duplicates checked at the same moment may both stay canonical)
+ * thread safe, shared by all indexing threads
+ */
+public class NearDuplicates {
+
+	/** maximum number of differing bits of near-duplicate fingerprints */
+	public static final int MAX_DISTANCE = 3;
+
+	/** pages with fewer words have no fingerprint, they are too short to compare */
+	public static final int MIN_WORDS = 20;
+
+	/** fingerprint of pages that are not compared */
+	public static final long NO_FINGERPRINT = 0;
+
+	/** number and width of bands */
+	private static final int BANDS = MAX_DISTANCE + 1;
+	private static final int BAND_BITS = 16;
+
+	/** words of one shingle */
+	private static final int SHINGLE = 3;
+
+	/** FNV-1a constants for word hashes */
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** initial capacity of bucket */
+	private static final int BUCKET_CAPACITY = 4;
+
+	/** fingerprints of canonical pages, bucket of band b and band value v is at (b << BAND_BITS) + v */
+	private final AtomicReferenceArray<Bucket> _buckets = new AtomicReferenceArray<Bucket>(BANDS << BAND_BITS);
+
+	/** record ids of canonical pages, null if they are not needed */
+	private final ConcurrentHashMap<Long, String> _canonicals;
+
+	/** statistics */
+	private final AtomicLong _checked = new AtomicLong();
+	private final AtomicLong _collapsed = new AtomicLong();
+
+	/**
+	 * constructor
+	 * @param keepIds keep record ids of canonical pages for pointers to them
+	 */
+	public NearDuplicates(boolean keepIds) {
+		_canonicals = keepIds ? new ConcurrentHashMap<Long, String>() : null;
+	}
+
+	/**
+	 * computes SimHash fingerprint of the text
+	 * words are runs of letters and digits compared case insensitive,
+	 * every shingle of SHINGLE consecutive words votes for the bits of its hash
+	 * cheap enough for the parsing threads, the text is not copied
+	 * @param text extracted page text
+	 * @return the fingerprint or NO_FINGERPRINT if the text has fewer than MIN_WORDS words
+	 */
+	public static long fingerprint(CharSequence text) {
+		int[] votes = new int[64];
+		long[] window = new long[SHINGLE];
+		int words = 0;
+		int n = text.length();
+		int i = 0;
+		while (i < n) {
+			while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+			if (i == n) break;
+			long word = FNV_OFFSET;
+			while (i < n && Character.isLetterOrDigit(text.charAt(i))) {
+				word = (word ^ Character.toLowerCase(text.charAt(i))) * FNV_PRIME;
+				i++;
+			}
+			window[words % SHINGLE] = word;
+			words++;
+			if (words < SHINGLE) continue;
+			long shingle = 0;
+			for (int w = words - SHINGLE; w < words; w++)
+				shingle = mix(shingle * 31 + window[w % SHINGLE]);
+			vote(votes, shingle);
+		}
+		if (words < MIN_WORDS) return NO_FINGERPRINT;
+		long fingerprint = 0;
+		for (int bit = 0; bit < 64; bit++) {
+			if (votes[bit] > 0) fingerprint |= 1L << bit;
+		}
+		return fingerprint != NO_FINGERPRINT ? fingerprint : 1;
+	}
+
+	/**
+	 * every bit of the shingle hash votes +1 if it is set, -1 otherwise
+	 * kept out of fingerprint() and branch-free - C2 of some JDK 17 builds crashes
+	 * compiling the conditional form on stack replacement of the word loop
+	 */
+	private static void vote(int[] votes, long shingle) {
+		for (int bit = 0; bit < 64; bit++)
+			votes[bit] += ((int) (shingle >>> bit) & 1) * 2 - 1;
+	}
+
+	/**
+	 * spreads bits of the hash (murmur3 finalizer)
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * looks the page up among canonical pages, the page becomes canonical if it is new
+	 * @param fingerprint fingerprint of the page, not NO_FINGERPRINT
+	 * @param recordId WARC-Record-ID of the page
+	 * @return null if the page is canonical, otherwise record id of its canonical page
+	 *         ("" if record ids are not kept or the canonical page has none)
+	 */
+	public String check(long fingerprint, String recordId) {
+		_checked.incrementAndGet();
+		for (int b = 0; b < BANDS; b++) {
+			Bucket bucket = _buckets.get(bucket(fingerprint, b));
+			if (bucket == null) continue;
+			long other = bucket.find(fingerprint);
+			if (other != NO_FINGERPRINT) {
+				_collapsed.incrementAndGet();
+				String canonical = _canonicals != null ? _canonicals.get(other) : null;
+				return canonical != null ? canonical : "";
+			}
+		}
+		if (_canonicals != null && recordId != null)
+			_canonicals.putIfAbsent(fingerprint, recordId);
+		for (int b = 0; b < BANDS; b++) {
+			int i = bucket(fingerprint, b);
+			Bucket bucket = _buckets.get(i);
+			if (bucket == null) {
+				Bucket created = new Bucket();
+				bucket = _buckets.compareAndSet(i, null, created) ? created : _buckets.get(i);
+			}
+			bucket.add(fingerprint);
+		}
+		return null;
+	}
+
+	/**
+	 * @return index of the bucket of the fingerprint in band b
+	 */
+	private static int bucket(long fingerprint, int b) {
+		return (b << BAND_BITS) + ((int) (fingerprint >>> (b * BAND_BITS)) & ((1 << BAND_BITS) - 1));
+	}
+
+	/**
+	 * fingerprints sharing one band
+	 * appends are synchronized and double the array when it is full, so common bands
+	 * do not copy the bucket on every page; the array is written before the size,
+	 * so lookups reading the size first see all fingerprints up to it without locks
+	 */
+	private static class Bucket {
+
+		private volatile long[] _fingerprints = new long[BUCKET_CAPACITY];
+		private volatile int _size;
+
+		private synchronized void add(long fingerprint) {
+			long[] fingerprints = _fingerprints;
+			if (_size == fingerprints.length) {
+				fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+				_fingerprints = fingerprints;
+			}
+			fingerprints[_size] = fingerprint;
+			_size = _size + 1;
+		}
+
+		/**
+		 * @return fingerprint at most MAX_DISTANCE bits away, NO_FINGERPRINT if there is none
+		 */
+		private long find(long fingerprint) {
+			int size = _size;
+			long[] fingerprints = _fingerprints;
+			for (int i = 0; i < size; i++) {
+				if (Long.bitCount(fingerprints[i] ^ fingerprint) <= MAX_DISTANCE) return fingerprints[i];
+			}
+			return NO_FINGERPRINT;
+		}
+
+	}
+
+	/**
+	 * @return number of pages looked up
+	 */
+	public long getChecked() {
+		return _checked.get();
+	}
+
+	/**
+	 * @return number of near-duplicates found
+	 */
+	public long getCollapsed() {
+		return _collapsed.get();
+	}
+
+	/**
+	 * @return human readable statistics
+	 */
+	public String getStats() {
+		long checked = _checked.get();
+		long collapsed = _collapsed.get();
+		return "Collapsed " + collapsed + " near-duplicates of " + checked + " fingerprinted pages ("
+				+ (checked > 0 ? Math.round(collapsed * 1000.0 / checked) / 10.0 : 0.0) + "%).";
+	}
+
+}
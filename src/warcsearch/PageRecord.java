@@ -0,0 +1,181 @@
+package warcsearch;
+
+import java.nio.CharBuffer;
+import org.apache.lucene.document.Document;
+
+/**
+ * PageRecord is parsed page waiting for indexing
+ * holds just what goes to the index - extracted text and the headers we store,
+ * the payload, decoded html and DOM are left behind in the Parser stage
+ */
+public class PageRecord {
+	
+	/** rough per-object overhead used in size estimate */
+	private static final int OVERHEAD = 128;
+	
+	/** extracted text, array backed */
+	private final CharBuffer _text;
+	private final String _recordId;
+	private final String _targetUri;
+	private final String _date;
+	private final String _trecId;
+	private final String _sourceFile;
+	
+	/** position of the record in archive */
+	private final long _offset;
+	private final long _length;
+	
+	/** byte range of IndexProgress the record was read from */
+	private int _range = -1;
+	
+	/** SimHash of the text, NearDuplicates.NO_FINGERPRINT if not computed */
+	private long _fingerprint = NearDuplicates.NO_FINGERPRINT;
+	
+	/** record id of canonical page if this one is its near-duplicate */
+	private String _duplicateOf;
+	
+	/**
+	 * constructor
+	 * @param text extracted body text, array backed buffer
+	 * @param recordId WARC-Record-ID header
+	 * @param targetUri WARC-Target-URI header
+	 * @param date WARC-Date header
+	 * @param trecId WARC-TREC-ID header
+	 * @param sourceFile path of archive file the record comes from
+	 * @param offset offset of the record in archive
+	 * @param length length of the record in archive
+	 */
+	public PageRecord(CharBuffer text, String recordId, String targetUri, String date, String trecId,
+			String sourceFile, long offset, long length) {
+		_text = text;
+		_recordId = recordId;
+		_targetUri = targetUri;
+		_date = date;
+		_trecId = trecId;
+		_sourceFile = sourceFile;
+		_offset = offset;
+		_length = length;
+	}
+	
+	/**
+	 * returns the content of this record
+	 * as indexable Lucene Document
+	 * indexing threads fill their own DocumentTemplate instead
+	 * @return doc LuceneDocument
+	 */
+	public Document getLuceneDocument() {
+		return new DocumentTemplate().fill(this);
+	}
+	
+	/**
+	 * estimates heap used by the record (2 bytes per char)
+	 * @return size in bytes
+	 */
+	public long getSize() {
+		return OVERHEAD + 2L * (_text.remaining() + length(_recordId) + length(_targetUri) + length(_date) + length(_trecId)
+				+ length(_sourceFile));
+	}
+	
+	private static int length(String s) {
+		return s != null ? s.length() : 0;
+	}
+	
+	/**
+	 * @return extracted body text (view of the buffer with its own position, not a copy)
+	 */
+	public CharBuffer getText() {
+		return _text.duplicate();
+	}
+	
+	/**
+	 * @return the WARC-Record-ID
+	 */
+	public String getRecordId() {
+		return _recordId;
+	}
+	
+	/**
+	 * @return the WARC-Target-URI
+	 */
+	public String getTargetUri() {
+		return _targetUri;
+	}
+	
+	/**
+	 * @return the WARC-Date
+	 */
+	public String getDate() {
+		return _date;
+	}
+	
+	/**
+	 * @return the WARC-TREC-ID
+	 */
+	public String getTrecId() {
+		return _trecId;
+	}
+	
+	/**
+	 * @return path of archive file the record comes from
+	 */
+	public String getSourceFile() {
+		return _sourceFile;
+	}
+	
+	/**
+	 * @return id of the byte range the record was read from, -1 if progress is not tracked
+	 */
+	public int getRange() {
+		return _range;
+	}
+	
+	/**
+	 * @param range id of the byte range the record was read from
+	 */
+	public void setRange(int range) {
+		_range = range;
+	}
+	
+	/**
+	 * @return SimHash of the text, NearDuplicates.NO_FINGERPRINT if not computed
+	 */
+	public long getFingerprint() {
+		return _fingerprint;
+	}
+	
+	/**
+	 * @param fingerprint SimHash of the text
+	 */
+	public void setFingerprint(long fingerprint) {
+		_fingerprint = fingerprint;
+	}
+	
+	/**
+	 * @return record id of canonical page, null if this is not a near-duplicate
+	 */
+	public String getDuplicateOf() {
+		return _duplicateOf;
+	}
+	
+	/**
+	 * @param duplicateOf record id of canonical page this one is near-duplicate of
+	 */
+	public void setDuplicateOf(String duplicateOf) {
+		_duplicateOf = duplicateOf;
+	}
+	
+	/**
+	 * @return offset of the record in archive
+	 */
+	public long getOffset() {
+		return _offset;
+	}
+	
+	/**
+	 * @return length of the record in archive
+	 */
+	public long getLength() {
+		return _length;
+	}
+
+}
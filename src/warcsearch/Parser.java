@@ -0,0 +1,181 @@
+package warcsearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parser class is the middle stage of the pipeline
+ * takes raw records cut by WebArchive, extracts text from their html
+ * and hands them over to the Indexer
+ * html parsing is the heaviest part, so it gets its own pool of threads,
+ * the pool can be resized while parsing (see Autotuner)
+ */
+public class Parser implements Runnable {
+	
+	/** raw records come from this queue */
+	private final RecordQueue<ExtendedWarcRecord> _rawQueue;
+	
+	/** parsed records go to this queue */
+	private final RecordQueue<PageRecord> _parsedQueue;
+	
+	/** initial number of parsing threads */
+	private final int _threadNo;
+	
+	/** parsing threads */
+	private final WorkerPool _pool;
+	
+	/** use jsoup DOM instead of streaming extractor */
+	private final boolean _useJsoup;
+	
+	/** fingerprint texts for near-duplicate detection */
+	private final boolean _fingerprint;
+	
+	/** number of parsed records and bytes allocated by the parsing threads */
+	private final AtomicLong _parsedNo = new AtomicLong();
+	private final AtomicLong _allocated = new AtomicLong();
+	
+	/** parsed records and time spent extracting and fingerprinting them */
+	/** progress of indexing, skipped records are released from it, null if not tracked */
+	private final IndexProgress _progress;
+	
+	private final Metrics.Counter _parseRecords;
+	private final Metrics.Counter _parseFailures;
+	private final Metrics.Timer _parseTime;
+	
+	/**
+	 * constructor
+	 * @param rawQueue queue filled by WebArchive
+	 * @param parsedQueue queue consumed by Indexer, closed at the end
+	 * @param settings number of parsing threads, text extractor and near-duplicate detection
+	 * @param progress progress of indexing, null if not tracked
+	 * @param metrics registry for parse.records, parse.failures and parse.time
+	 */
+	public Parser(RecordQueue<ExtendedWarcRecord> rawQueue, RecordQueue<PageRecord> parsedQueue,
+			IndexSettings settings, IndexProgress progress, Metrics metrics) {
+		_rawQueue = rawQueue;
+		_parsedQueue = parsedQueue;
+		_threadNo = settings.getParseThreadNo();
+		_useJsoup = settings.useJsoup();
+		_fingerprint = settings.detectNearDuplicates();
+		_progress = progress;
+		_parseRecords = metrics.counter("parse.records");
+		_parseFailures = metrics.counter("parse.failures");
+		_parseTime = metrics.timer("parse.time");
+		_pool = new WorkerPool("parser", new WorkerPool.WorkerFactory() {
+			@Override
+			public Runnable create(int workerNumber) {
+				return new ParserTask(workerNumber);
+			}
+		});
+	}
+	
+	/**
+	 * runs the parser
+	 * delegates parsing to ParserTask workers
+	 * when all of them are done, closes the queue for the indexing threads
+	 */
+	@Override
+	public void run() {
+		try {
+			_pool.start(_threadNo);
+			_pool.await();
+		} catch (InterruptedException e) {
+			// the pipeline is being torn down, indexing threads get the end of the queue
+			Thread.currentThread().interrupt();
+		} finally {
+			_parsedQueue.close();
+		}
+	}
+	
+	/**
+	 * @return parsing threads
+	 */
+	public WorkerPool getPool() {
+		return _pool;
+	}
+	
+	/**
+	 * @return number of parsed records
+	 */
+	public long getParsedNo() {
+		return _parsedNo.get();
+	}
+	
+	/**
+	 * @return bytes allocated by the parsing threads, -1 if not known
+	 */
+	public long getAllocatedBytes() {
+		return JvmStats.threadAllocatedBytes() < 0 ? -1 : _allocated.get();
+	}
+	
+	/**
+	 * runnable ParserTask class
+	 * - taking raw records from queue, parsing them and passing them further
+	 */
+	private class ParserTask implements Runnable {
+		
+		private int _threadNumber;
+		
+		/** decoding and extraction buffers of this thread */
+		private final HtmlTextExtractor _extractor = new HtmlTextExtractor();
+		
+		/**
+		 * constructor
+		 * holds the information which thread number it is for debugging
+		 * @param threadNumber
+		 */
+		public ParserTask(int threadNumber) {
+			_threadNumber = threadNumber;
+		}
+		
+		/**
+		 * the heavy duty - html parsing
+		 * and fingerprinting, so indexing threads only look the fingerprint up
+		 */
+		@Override
+		public void run() {
+			long allocated = JvmStats.threadAllocatedBytes();
+			boolean retired = false;
+			int i = 0;
+			try {
+				while (true) {
+					if (_pool.retire()) {
+						retired = true;
+						break;
+					}
+					ExtendedWarcRecord rec = _rawQueue.take();
+					if (rec == null) break;
+					long startTime = System.nanoTime();
+					PageRecord page;
+					try {
+						page = rec.parse(_useJsoup, _extractor);
+						if (_fingerprint)
+							page.setFingerprint(NearDuplicates.fingerprint(page.getText()));
+					} catch (RuntimeException e) {
+						// malformed page must not take the thread down, the others would wait for it
+						_parseFailures.increment();
+						System.err.println("There was a problem with parsing record " + rec.getRecordId() + ", skipping it.");
+						e.printStackTrace();
+						// it would fail again, so it must not hold the checkpoint of its range back
+						if (_progress != null && rec.getRange() >= 0)
+							_progress.indexed(rec.getRange(), rec.getOffset());
+						continue;
+					}
+					_parseTime.since(startTime);
+					_parseRecords.increment();
+					_parsedQueue.put(page, page.getSize());
+					_parsedNo.incrementAndGet();
+					if (++i%1000==0)
+						System.out.println("INFO: Parser#"+_threadNumber+" parsed " + i);
+				}
+			} catch (InterruptedException e) {
+				// the pipeline is being torn down
+				Thread.currentThread().interrupt();
+			} finally {
+				if (allocated >= 0) _allocated.addAndGet(JvmStats.threadAllocatedBytes() - allocated);
+				if (!retired) _pool.done();
+			}
+		}
+	
+	}
+
+}
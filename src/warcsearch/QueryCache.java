@@ -0,0 +1,207 @@
+package warcsearch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.Query;
+
+/**
+ * QueryCache keeps results of recent searches
+ * keyed on parsed Query (so differently written same queries share entry)
+ * and number of requested hits
+ * bounded by number of entries and estimated memory, least recently used
+ * entries are evicted first
+ * the whole cache is dropped when the index generation changes
+ * thread safe
+ */
+public class QueryCache {
+	
+	/** default bounds */
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	
+	/** rough per-object overheads for memory estimate */
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final int RESULT_OVERHEAD = 64;
+	private static final int FIELD_OVERHEAD = 48;
+	
+	/** bounds */
+	private final int _maxEntries;
+	private final long _maxBytes;
+	
+	/** entries in access order, the eldest is least recently used */
+	private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	
+	/** estimated memory of all entries */
+	private long _bytes;
+	
+	/** index generation of cached results */
+	private long _generation = -1;
+	
+	/** counters */
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+	private final AtomicLong _invalidations = new AtomicLong();
+	
+	/** cache key - parsed query and number of hits */
+	private static class Key {
+		private final Query _query;
+		private final int _hitsNo;
+		
+		private Key(Query query, int hitsNo) {
+			_query = query;
+			_hitsNo = hitsNo;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * _query.hashCode() + _hitsNo;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return _hitsNo == other._hitsNo && _query.equals(other._query);
+		}
+	}
+	
+	/** cached results and their estimated memory */
+	private static class Entry {
+		private final ArrayList<Result> _results;
+		private final long _bytes;
+		
+		private Entry(ArrayList<Result> results, long bytes) {
+			_results = results;
+			_bytes = bytes;
+		}
+	}
+	
+	/**
+	 * constructor
+	 * @param maxEntries maximum number of cached queries
+	 * @param maxBytes maximum estimated memory of cached results
+	 */
+	public QueryCache(int maxEntries, long maxBytes) {
+		_maxEntries = maxEntries;
+		_maxBytes = maxBytes;
+	}
+	
+	/**
+	 * returns cached results
+	 * @param query parsed query
+	 * @param hitsNo number of requested hits
+	 * @param generation generation of the index the results would come from
+	 * @return copy of cached results or null on miss
+	 */
+	public synchronized ArrayList<Result> get(Query query, int hitsNo, long generation) {
+		invalidate(generation);
+		Entry entry = _entries.get(new Key(query, hitsNo));
+		if (entry == null) {
+			_misses.incrementAndGet();
+			return null;
+		}
+		_hits.incrementAndGet();
+		return new ArrayList<Result>(entry._results);
+	}
+	
+	/**
+	 * caches results, evicts least recently used entries over the bounds
+	 * @param query parsed query
+	 * @param hitsNo number of requested hits
+	 * @param generation generation of the index the results come from
+	 * @param results results to cache
+	 */
+	public synchronized void put(Query query, int hitsNo, long generation, ArrayList<Result> results) {
+		invalidate(generation);
+		if (generation != _generation) return;
+		long bytes = estimate(results);
+		if (bytes > _maxBytes) return;
+		Entry old = _entries.put(new Key(query, hitsNo), new Entry(new ArrayList<Result>(results), bytes));
+		if (old != null) _bytes -= old._bytes;
+		_bytes += bytes;
+		Iterator<Entry> eldest = _entries.values().iterator();
+		while ((_entries.size() > _maxEntries || _bytes > _maxBytes) && eldest.hasNext()) {
+			_bytes -= eldest.next()._bytes;
+			eldest.remove();
+			_evictions.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * drops all entries if the index generation changed
+	 * results of older generation are not cached anymore
+	 * @param generation current generation of the index
+	 */
+	private void invalidate(long generation) {
+		if (generation > _generation) {
+			if (!_entries.isEmpty()) _invalidations.incrementAndGet();
+			_entries.clear();
+			_bytes = 0;
+			_generation = generation;
+		}
+	}
+	
+	/**
+	 * estimates memory held by results
+	 * @param results
+	 * @return estimated bytes
+	 */
+	private static long estimate(ArrayList<Result> results) {
+		long bytes = ENTRY_OVERHEAD;
+		for (Result r: results) {
+			bytes += RESULT_OVERHEAD;
+			if (r.getSourceFile() != null) bytes += 2L * r.getSourceFile().length();
+			Document doc = r.getDoc();
+			if (doc == null) continue;
+			for (IndexableField field: doc.getFields()) {
+				bytes += FIELD_OVERHEAD + 2L * field.name().length();
+				String value = field.stringValue();
+				if (value != null) bytes += 2L * value.length();
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return number of cache hits
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+	
+	/**
+	 * @return number of cache misses
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+	
+	/**
+	 * @return human readable cache statistics
+	 */
+	public synchronized String getStats() {
+		long hits = _hits.get();
+		long lookups = hits + _misses.get();
+		return "Cache " + _entries.size() + " entries, " + _bytes / 1024 + "kB, "
+				+ hits + " hits, " + _misses.get() + " misses ("
+				+ (lookups > 0 ? 100 * hits / lookups : 0) + "% hit rate), "
+				+ _evictions.get() + " evictions, " + _invalidations.get() + " invalidations.";
+	}
+	
+	/**
+	 * @return cache statistics as JSON object
+	 */
+	public synchronized String getJsonStats() {
+		return "{\"entries\":" + _entries.size() + ",\"bytes\":" + _bytes + ",\"hits\":" + _hits.get()
+				+ ",\"misses\":" + _misses.get() + ",\"evictions\":" + _evictions.get()
+				+ ",\"invalidations\":" + _invalidations.get() + "}";
+	}
+
+}
@@ -0,0 +1,253 @@
+package warcsearch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * QueryServer answers queries over local HTTP
+ * the index is opened once and shared by all request threads
+ * GET /search?q=query[&n=hits][&text=1] returns results as JSON,
+ * with text=1 the text of every hit is read back from the archive
+ * GET /status returns number of searchable documents and cache statistics
+ * GET /metrics returns metrics of the index (search latency histogram among them) as JSON
+ */
+public class QueryServer {
+	
+	/** default port */
+	public static final int DEFAULT_PORT = 8080;
+	
+	/** maximum number of results per request */
+	private static final int MAX_HITS = 1000;
+	
+	/** stored fields returned with every hit */
+	private static final String[] FIELDS = new String[] { "recordId", "targetUri", "trecId", "date", "duplicateOf" };
+	
+	/** indexer with the index to search */
+	private final Indexer _indexer;
+	
+	/** http server and its request threads */
+	private final HttpServer _server;
+	private final ExecutorService _pool;
+	
+	/**
+	 * constructor
+	 * binds the server to loopback interface
+	 * @param indexer indexer with the index to search
+	 * @param port port to listen on
+	 * @param threadNo number of request handling threads
+	 * @throws IOException when the port can't be bound
+	 */
+	public QueryServer(Indexer indexer, int port, int threadNo) throws IOException {
+		_indexer = indexer;
+		_pool = Executors.newFixedThreadPool(threadNo);
+		_server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		_server.setExecutor(_pool);
+		_server.createContext("/search", new SearchHandler());
+		_server.createContext("/status", new StatusHandler());
+		_server.createContext("/metrics", new MetricsHandler());
+	}
+	
+	/**
+	 * starts serving requests in background threads
+	 */
+	public void start() {
+		_server.start();
+	}
+	
+	/**
+	 * stops the server, waits at most a second for running requests
+	 */
+	public void stop() {
+		_server.stop(1);
+		_pool.shutdown();
+	}
+	
+	/**
+	 * parses url query string
+	 * @param rawQuery raw (encoded) query string, may be null
+	 * @return decoded parameters
+	 * @throws UnsupportedEncodingException
+	 */
+	private static Map<String, String> parseParams(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null) return params;
+		for (String pair: rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0) {
+				params.put(URLDecoder.decode(pair, "UTF-8"), "");
+			} else {
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+	
+	/**
+	 * sends JSON response
+	 * @param exchange the request
+	 * @param status http status
+	 * @param json response body
+	 * @throws IOException
+	 */
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * appends JSON string literal
+	 * @param sb builder
+	 * @param value string or null
+	 */
+	private static void appendJson(StringBuilder sb, String value) {
+		if (value == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+	
+	/**
+	 * handler of /search requests
+	 */
+	private class SearchHandler implements HttpHandler {
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+				String query = params.get("q");
+				if (query == null || query.trim().length() == 0) {
+					respond(exchange, 400, "{\"error\":\"missing parameter q\"}");
+					return;
+				}
+				int hitsNo = Indexer.HITS_PER_PAGE;
+				try {
+					if (params.containsKey("n"))
+						hitsNo = Math.min(MAX_HITS, Math.max(1, Integer.parseInt(params.get("n"))));
+				} catch (NumberFormatException e) {
+					respond(exchange, 400, "{\"error\":\"bad parameter n\"}");
+					return;
+				}
+				Query parsed;
+				try {
+					parsed = _indexer.parseQuery(query);
+				} catch (ParseException e) {
+					respond(exchange, 400, "{\"error\":\"bad query\"}");
+					return;
+				}
+				boolean withText = "1".equals(params.get("text"));
+				long startTime = System.nanoTime();
+				ArrayList<Result> results = _indexer.search(parsed, hitsNo);
+				double took = (System.nanoTime() - startTime) / 1000000.0;
+				StringBuilder sb = new StringBuilder();
+				sb.append("{\"query\":");
+				appendJson(sb, query);
+				sb.append(",\"tookMs\":").append(took).append(",\"hits\":[");
+				for (int i = 0; i < results.size(); i++) {
+					Result r = results.get(i);
+					Document doc = r.getDoc();
+					if (i > 0) sb.append(',');
+					sb.append("{\"score\":").append(r.getScore());
+					for (String field: FIELDS) {
+						sb.append(",\"").append(field).append("\":");
+						appendJson(sb, doc.get(field));
+					}
+					sb.append(",\"sourceFile\":");
+					appendJson(sb, r.getSourceFile());
+					sb.append(",\"offset\":").append(r.getOffset()).append(",\"length\":").append(r.getLength());
+					if (withText) {
+						sb.append(",\"text\":");
+						try {
+							appendJson(sb, r.getText());
+						} catch (IOException e) {
+							appendJson(sb, null);
+						}
+					}
+					sb.append('}');
+				}
+				sb.append("]}");
+				respond(exchange, 200, sb.toString());
+			} finally {
+				exchange.close();
+			}
+		}
+	
+	}
+	
+	/**
+	 * handler of /status requests
+	 */
+	private class StatusHandler implements HttpHandler {
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				QueryCache cache = _indexer.getCache();
+				respond(exchange, 200, "{\"numDocs\":" + _indexer.numDocs()
+						+ ",\"cache\":" + (cache != null ? cache.getJsonStats() : "null") + "}");
+			} finally {
+				exchange.close();
+			}
+		}
+	
+	}
+	
+	/**
+	 * handler of /metrics requests
+	 */
+	private class MetricsHandler implements HttpHandler {
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				respond(exchange, 200, _indexer.getMetrics().getJsonStats());
+			} finally {
+				exchange.close();
+			}
+		}
+	
+	}
+
+}
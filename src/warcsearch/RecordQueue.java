@@ -0,0 +1,185 @@
+package warcsearch;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RecordQueue connects two stages of the indexing pipeline
+ * bounded by total bytes of queued records instead of their count,
+ * so the heap used by records in flight does not depend on page sizes
+ * producer blocks while the queue is over its budget, a record bigger than
+ * the whole budget is still let in when the queue is empty
+ * producers close the queue when they are done, consumers then drain it
+ * and get null from take() (replaces terminator records)
+ * @param <T> queued record type
+ */
+public class RecordQueue<T> {
+	
+	/** name for statistics */
+	private final String _name;
+	
+	/** budget of queued bytes */
+	private final long _maxBytes;
+	
+	private final LinkedList<T> _records = new LinkedList<T>();
+	private final LinkedList<Long> _sizes = new LinkedList<Long>();
+	
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private final Condition _notFull = _lock.newCondition();
+	
+	/** bytes of queued records */
+	private long _bytes;
+	
+	/** true when producers are done */
+	private boolean _closed;
+	
+	/** statistics */
+	private long _puts;
+	private long _peakBytes;
+	private int _peakSize;
+	private long _putWaitNs;
+	private long _takeWaitNs;
+	
+	/**
+	 * constructor
+	 * @param name name for statistics
+	 * @param maxBytes budget of queued bytes
+	 */
+	public RecordQueue(String name, long maxBytes) {
+		_name = name;
+		_maxBytes = maxBytes;
+	}
+	
+	/**
+	 * puts record to the queue, waits while the queue is over budget
+	 * @param record the record
+	 * @param bytes estimated size of the record
+	 * @throws InterruptedException
+	 * @throws IllegalStateException when the queue is already closed
+	 */
+	public void put(T record, long bytes) throws InterruptedException {
+		_lock.lockInterruptibly();
+		try {
+			if (_bytes + bytes > _maxBytes && !_records.isEmpty() && !_closed) {
+				long startTime = System.nanoTime();
+				while (_bytes + bytes > _maxBytes && !_records.isEmpty() && !_closed)
+					_notFull.await();
+				_putWaitNs += System.nanoTime() - startTime;
+			}
+			if (_closed)
+				throw new IllegalStateException("Queue " + _name + " is closed.");
+			_records.addLast(record);
+			_sizes.addLast(bytes);
+			_bytes += bytes;
+			_puts++;
+			_peakBytes = Math.max(_peakBytes, _bytes);
+			_peakSize = Math.max(_peakSize, _records.size());
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * takes record from the queue, waits while it is empty and open
+	 * @return the record or null when the queue is closed and drained
+	 * @throws InterruptedException
+	 */
+	public T take() throws InterruptedException {
+		_lock.lockInterruptibly();
+		try {
+			if (_records.isEmpty() && !_closed) {
+				long startTime = System.nanoTime();
+				while (_records.isEmpty() && !_closed)
+					_notEmpty.await();
+				_takeWaitNs += System.nanoTime() - startTime;
+			}
+			if (_records.isEmpty()) return null;
+			_bytes -= _sizes.removeFirst();
+			_notFull.signalAll();
+			return _records.removeFirst();
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * signals that no more records will be put
+	 * wakes up all waiting consumers
+	 */
+	public void close() {
+		_lock.lock();
+		try {
+			_closed = true;
+			_notEmpty.signalAll();
+			_notFull.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return number of queued records
+	 */
+	public int size() {
+		_lock.lock();
+		try {
+			return _records.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return bytes of queued records
+	 */
+	public long getBytes() {
+		_lock.lock();
+		try {
+			return _bytes;
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return budget of queued bytes
+	 */
+	public long getMaxBytes() {
+		return _maxBytes;
+	}
+	
+	/**
+	 * @return human readable queue statistics
+	 */
+	public String getStats() {
+		_lock.lock();
+		try {
+			return "Queue " + _name + " " + _records.size() + " records, " + _bytes / 1024 + "kB of "
+					+ _maxBytes / 1024 + "kB, peak " + _peakSize + " records, " + _peakBytes / 1024 + "kB, "
+					+ _puts + " puts, producers waited " + TimeUnit.NANOSECONDS.toMillis(_putWaitNs)
+					+ "ms, consumers waited " + TimeUnit.NANOSECONDS.toMillis(_takeWaitNs) + "ms.";
+		} finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return queue statistics as JSON object
+	 */
+	public String getJsonStats() {
+		_lock.lock();
+		try {
+			return "{\"name\":\"" + _name + "\",\"records\":" + _records.size() + ",\"bytes\":" + _bytes
+					+ ",\"maxBytes\":" + _maxBytes + ",\"peakRecords\":" + _peakSize + ",\"peakBytes\":" + _peakBytes
+					+ ",\"puts\":" + _puts + ",\"putWaitMs\":" + TimeUnit.NANOSECONDS.toMillis(_putWaitNs)
+					+ ",\"takeWaitMs\":" + TimeUnit.NANOSECONDS.toMillis(_takeWaitNs) + "}";
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+}
@@ -1,9 +1,13 @@
 package warcsearch;
 
+import java.io.File;
+import java.io.IOException;
 import org.apache.lucene.document.Document;
 
 /**
  * encaps class for storing search results
+ * holds just the short stored fields and position of the record in archive,
+ * the original record and its text are read from the archive only when asked for
  * expandable
  */
 public class Result {
@@ -12,6 +16,11 @@ public class Result {
 	private int _id;
 	private double _score;
 	
+	/** position of the record in archive, null file if unknown */
+	private String _sourceFile;
+	private long _offset = -1;
+	private long _length = -1;
+	
 	/**
 	 * empty constructor
 	 */
@@ -31,6 +40,40 @@ public class Result {
 		_score = score;
 	}
 
+	/**
+	 * sets position of the record in archive
+	 * @param sourceFile path of archive file
+	 * @param offset offset of the record (of its gzip member in .warc.gz)
+	 * @param length length of the record (of its gzip member)
+	 */
+	public void setLocation(String sourceFile, long offset, long length) {
+		_sourceFile = sourceFile;
+		_offset = offset;
+		_length = length;
+	}
+	
+	/**
+	 * reads the original record from the archive, nothing is cached
+	 * @return the record with its payload
+	 * @throws IOException when the position is unknown or the archive changed
+	 */
+	public ExtendedWarcRecord getRecord() throws IOException {
+		if (_sourceFile == null)
+			throw new IOException("There is no archive position of the result.");
+		return WebArchive.readRecord(new File(_sourceFile), _offset, _length);
+	}
+	
+	/**
+	 * reads the original record from the archive and extracts its text again
+	 * @return extracted body text
+	 * @throws IOException when the position is unknown or the archive changed
+	 */
+	public String getText() throws IOException {
+		ExtendedWarcRecord record = getRecord();
+		record.readHttpHeader();
+		return record.parse(false).getText().toString();
+	}
+	
 	/**
 	 * returns nice line of the result for user
 	 */
@@ -52,6 +95,27 @@ public class Result {
 		this._doc = _doc;
 	}
 
+	/**
+	 * @return path of archive file with the record, null if unknown
+	 */
+	public String getSourceFile() {
+		return _sourceFile;
+	}
+	
+	/**
+	 * @return offset of the record in archive, -1 if unknown
+	 */
+	public long getOffset() {
+		return _offset;
+	}
+	
+	/**
+	 * @return length of the record in archive, -1 if unknown
+	 */
+	public long getLength() {
+		return _length;
+	}
+
 	/**
 	 * @return the _id
 	 */
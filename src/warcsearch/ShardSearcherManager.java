@@ -0,0 +1,126 @@
+package warcsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+
+/**
+ * ShardSearcherManager shares one searcher over several index shards
+ * SearcherManager counterpart for composite index - the searcher reads
+ * MultiReader over one DirectoryReader per shard
+ * on refresh only changed shards are reopened, unchanged shard readers
+ * are shared by the old and new MultiReader (reference counted)
+ * shard readers can be near-real-time readers of shard writers
+ */
+public class ShardSearcherManager extends ReferenceManager<IndexSearcher> {
+	
+	/**
+	 * constructor
+	 * the manager takes over the readers, they are closed with it
+	 * @param readers one reader per shard
+	 */
+	public ShardSearcherManager(DirectoryReader[] readers) throws IOException {
+		current = searcher(readers);
+	}
+	
+	/**
+	 * reopens changed shards
+	 * @param searcher current searcher
+	 * @return new searcher or null if no shard changed
+	 * @throws IOException
+	 */
+	@Override
+	protected IndexSearcher refreshIfNeeded(IndexSearcher searcher) throws IOException {
+		List<IndexReaderContext> shards = searcher.getIndexReader().getContext().children();
+		DirectoryReader[] readers = new DirectoryReader[shards.size()];
+		boolean changed = false;
+		try {
+			for (int i = 0; i < readers.length; i++) {
+				DirectoryReader old = (DirectoryReader) shards.get(i).reader();
+				DirectoryReader reader = DirectoryReader.openIfChanged(old);
+				if (reader == null) {
+					// shared by the new MultiReader as well
+					old.incRef();
+					reader = old;
+				} else {
+					changed = true;
+				}
+				readers[i] = reader;
+			}
+		} catch (IOException e) {
+			release(readers);
+			throw e;
+		}
+		if (!changed) {
+			release(readers);
+			return null;
+		}
+		return searcher(readers);
+	}
+	
+	/**
+	 * MultiReader takes its own reference to every shard reader and releases it
+	 * when it is closed, closing the shard readers instead would release a shared reader
+	 * just once however many MultiReaders hold it
+	 * the references of the caller are handed over to the MultiReader
+	 * @param readers opened or incRef'd shard readers
+	 * @return searcher over the shards
+	 */
+	private static IndexSearcher searcher(DirectoryReader[] readers) throws IOException {
+		MultiReader multi;
+		try {
+			multi = new MultiReader(readers, false);
+		} finally {
+			release(readers);
+		}
+		return new IndexSearcher(multi);
+	}
+	
+	/**
+	 * releases references to shard readers
+	 */
+	private static void release(DirectoryReader[] readers) throws IOException {
+		for (DirectoryReader reader: readers) {
+			if (reader != null) reader.decRef();
+		}
+	}
+	
+	@Override
+	protected void decRef(IndexSearcher searcher) throws IOException {
+		searcher.getIndexReader().decRef();
+	}
+	
+	@Override
+	protected boolean tryIncRef(IndexSearcher searcher) {
+		return searcher.getIndexReader().tryIncRef();
+	}
+	
+	@Override
+	protected int getRefCount(IndexSearcher searcher) {
+		return searcher.getIndexReader().getRefCount();
+	}
+	
+	/**
+	 * version of plain or composite index
+	 * sum of shard versions for MultiReader, it grows whenever any shard changes
+	 * @param reader reader of the searcher
+	 * @return version of the index
+	 */
+	public static long getVersion(IndexReader reader) {
+		if (reader instanceof DirectoryReader)
+			return ((DirectoryReader) reader).getVersion();
+		long version = 0;
+		List<IndexReaderContext> children = reader.getContext().children();
+		if (children != null) {
+			for (IndexReaderContext child: children)
+				version += getVersion(child.reader());
+		}
+		return version;
+	}
+
+}
@@ -0,0 +1,19 @@
+package warcsearch;
+
+import java.io.IOException;
+
+/**
+ * reader of WARC records from one byte range of an archive
+ * implemented for plain (MappedWarcReader) and gzipped (GzipWarcReader) archives
+ * not thread safe, every reading thread should have its own reader
+ */
+public interface WarcRecordReader {
+
+	/**
+	 * reads next record of the range
+	 * @return the record or null if there are no more records in range
+	 * @throws IOException when the archive is broken
+	 */
+	public ExtendedWarcRecord next() throws IOException;
+
+}
@@ -1,10 +1,11 @@
 package warcsearch;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -23,10 +24,7 @@ import org.apache.commons.cli.ParseException;
  * @since Fri Mar 28 18:41:59 HKT 2014
  * 
  * TODO
- * - increase thread count to mergescheduler
- * - write own WARC parser
  * - parallel better
- * - keep track of processed records
  * - handle input better?
  */
 public class WarcSearch {
@@ -38,45 +36,381 @@ public class WarcSearch {
 	private static Option[] option_array = new Option[] {
 		new Option("h", "help", false, "displays this help message"),
 		new Option("i", "interactive", false, "runs the program in interactive mode"),
-		new Option("a", "archive", true, "path to warc file"),
+		new Option("a", "archive", true, "path to warc file, directory of them, glob or list file"),
 		new Option("q", "query", true, "query"),
-		new Option("t", "threads", true, "number of threas"),
+		new Option("t", "threads", true, "number of indexing threads"),
+		new Option("p", "parsers", true, "number of html parsing threads"),
+		new Option("r", "readers", true, "number of archive reading threads"),
+		new Option("x", "index-dir", true, "directory with persistent indexes"),
+		new Option(null, "refresh", true, "searcher refresh interval in ms while indexing"),
+		new Option(null, "extractor", true, "html text extractor: stream (default) or jsoup"),
+		new Option(null, "max-page-kb", true, "cap of indexed bytes of one page in kB, 0 for no cap (default 8192)"),
+		new Option(null, "queue-mb", true, "budget of records in flight between pipeline stages in MB"),
+		new Option(null, "shards", true, "number of index shards with own writers"),
+		new Option(null, "shard-mode", true, "merge shards at the end (merge, default) or search them as they are (multi)"),
+		new Option(null, "merge-threads", true, "number of merge threads per writer"),
+		new Option(null, "ram-buffer-mb", true, "ram buffer per writer in MB"),
+		new Option(null, "checkpoint", true, "interval of checkpoint commits in seconds (0 disables them)"),
+		new Option(null, "resume", false, "resume interrupted indexing from its last checkpoint"),
+		new Option(null, "index", true, "index directory to update or search instead of the persistent index of the archive"),
+		new Option(null, "latest-only", false, "keep only the latest capture of every url"),
+		new Option(null, "metrics-file", true, "export metrics to the file, CSV if it ends with .csv, JSON lines otherwise"),
+		new Option(null, "metrics-interval", true, "interval of metrics reports in seconds (default 5)"),
+		new Option(null, "autotune", false, "resize parsing and indexing threads while indexing, logs the best counts"),
+		new Option(null, "near-duplicates", true, "near-duplicate pages: off (default), skip or mark (index pointer to canonical page)"),
+		new Option(null, "url", true, "lookup: captures of exact url"),
+		new Option(null, "url-prefix", true, "lookup: captures of urls starting with the prefix"),
+		new Option(null, "record-id", true, "lookup: capture with WARC-Record-ID"),
+		new Option(null, "trec-id", true, "lookup: capture with WARC-TREC-ID"),
+		new Option(null, "topics", true, "batch: topics file, one \"id:query\" per line"),
+		new Option("o", "output", true, "batch: TREC run file to write"),
+		new Option(null, "depth", true, "batch: number of results per topic, lookup: max captures of url prefix"),
+		new Option(null, "run-tag", true, "batch: tag of the run"),
+		new Option(null, "search-threads", true, "batch, serve: number of searching threads"),
+		new Option(null, "port", true, "serve: port to listen on"),
+		new Option(null, "cache-entries", true, "batch, serve: max number of cached queries (0 disables cache)"),
+		new Option(null, "cache-mb", true, "batch, serve: max memory of cached results in MB"),
 	};
 	
+	/** cli modes */
+	private static final String MODE_INDEX = "index";
+	private static final String MODE_SEARCH = "search";
+	private static final String MODE_BATCH = "batch";
+	private static final String MODE_SERVE = "serve";
+	private static final String MODE_UPDATE = "update";
+	private static final String MODE_LOOKUP = "lookup";
+	
+	/** default maximum number of captures of url prefix */
+	private static final int DEFAULT_PREFIX_CAPTURES = 1000;
+	
 	/**
-	 * parses archive into ExtendedWarcRecords and to LuceneDocuments
-	 * indexes prepared LuceneDocuments
-	 * runs a search for given query
-	 * displays results
+	 * indexes the archive unless it is indexed already
+	 * then runs a search for given query
 	 * @param query
 	 * @param archive
-	 * @param threadNo determined number of threads for indexing
+	 * @param indexBase directory with persistent indexes
+	 * @param settings indexing pipeline configuration
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	public static void run(String query, String archive, String indexBase, IndexSettings settings)
+			throws InterruptedException, IOException {
+		Indexer indexer = openIndex(archive, null, indexBase, settings);
+		search(query, indexer);
+		indexer.close();
+	}
+	
+	/**
+	 * indexes the archive unless it is indexed already
+	 * then evaluates all topics from topics file and writes TREC run file
+	 * @param topics path to topics file
+	 * @param runFile path to run file
+	 * @param runTag tag of the run
+	 * @param depth number of results per topic
+	 * @param searchThreadNo number of searching threads
+	 * @param cache result cache or null
+	 * @param archive
+	 * @param indexLoc index directory given by --index, null for persistent index of the archive
+	 * @param indexBase directory with persistent indexes
+	 * @param settings indexing pipeline configuration
 	 * @throws InterruptedException 
+	 * @throws IOException 
 	 */
-	public static void run(String query, String archive, int threadNo) throws InterruptedException {
-		// prepare queue and threads
-		System.out.println("Configuring parser and indexer.");
-		LinkedBlockingQueue<ExtendedWarcRecord> sharedQueue = new LinkedBlockingQueue<ExtendedWarcRecord>(512);
-		WebArchive wa = new WebArchive(archive, sharedQueue, threadNo);
-		Indexer indexer = new Indexer(sharedQueue, threadNo);
-		// run p-c
+	public static void batch(String topics, String runFile, String runTag, int depth, int searchThreadNo,
+			QueryCache cache, String archive, String indexLoc, String indexBase, IndexSettings settings)
+			throws InterruptedException, IOException {
+		Indexer indexer = openIndex(archive, indexLoc, indexBase, settings);
+		indexer.setCache(cache);
+		BatchSearch batch = new BatchSearch(indexer, searchThreadNo, depth, runTag);
+		batch.readTopics(topics);
+		MetricsReporter reporter = settings.getMetricsFile() != null
+				? createReporter(indexer.getMetrics(), settings, false) : null;
+		batch.run();
+		batch.writeRun(runFile);
+		batch.printStats();
+		System.out.println("Run written to " + runFile + ".");
+		if (reporter != null) {
+			reporter.reportTotals();
+			reporter.close();
+			System.out.println("Metrics written to " + settings.getMetricsFile() + ".");
+		}
+		indexer.close();
+	}
+	
+	/**
+	 * indexes the archive unless it is indexed already
+	 * then answers queries over local HTTP until the process is killed
+	 * @param port port to listen on
+	 * @param searchThreadNo number of request handling threads
+	 * @param cache result cache or null
+	 * @param archive
+	 * @param indexLoc index directory given by --index, null for persistent index of the archive
+	 * @param indexBase directory with persistent indexes
+	 * @param settings indexing pipeline configuration
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	public static void serve(int port, int searchThreadNo, QueryCache cache, String archive, String indexLoc,
+			String indexBase, IndexSettings settings) throws InterruptedException, IOException {
+		final Indexer indexer = openIndex(archive, indexLoc, indexBase, settings);
+		indexer.setCache(cache);
+		final QueryServer server = new QueryServer(indexer, port, searchThreadNo);
+		// search latencies are exported periodically if asked for, /metrics has them anyway
+		final MetricsReporter reporter = settings.getMetricsFile() != null
+				? createReporter(indexer.getMetrics(), settings, false) : null;
+		if (reporter != null) {
+			Thread export = new Thread(reporter);
+			export.setDaemon(true);
+			export.start();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+				if (reporter != null) {
+					reporter.stop();
+					reporter.reportTotals();
+					reporter.close();
+				}
+				try {
+					indexer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		server.start();
+		System.out.println("Serving queries on http://127.0.0.1:" + port + "/search?q=query&n=10 with "
+				+ searchThreadNo + " threads.");
+	}
+	
+	/**
+	 * creates metrics reporter configured by the settings
+	 * @param metrics reported metrics
+	 * @param settings interval of the reports and export file
+	 * @param console print reports to the console
+	 * @return the reporter, not started
+	 */
+	public static MetricsReporter createReporter(Metrics metrics, IndexSettings settings, boolean console) {
+		return new MetricsReporter(metrics, settings.getMetricsMs(), console,
+				settings.getMetricsFile() != null ? new File(settings.getMetricsFile()) : null);
+	}
+	
+	/**
+	 * opens the persistent index of the archive
+	 * indexes the archive first if there is no complete index of it yet
+	 * index given by --index is just opened, the archive is not needed then
+	 * @param archive
+	 * @param indexLoc index directory given by --index, null for persistent index of the archive
+	 * @param indexBase directory with persistent indexes
+	 * @param settings indexing pipeline configuration
+	 * @return indexer ready for searching
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	public static Indexer openIndex(String archive, String indexLoc, String indexBase, IndexSettings settings)
+			throws InterruptedException, IOException {
+		if (indexLoc != null && archive == null) {
+			if (!Indexer.exists(new File(indexLoc)))
+				throw new IOException("There is no index in " + indexLoc + ".");
+			System.out.println("Using index " + indexLoc + ".");
+			return new Indexer(new File(indexLoc));
+		}
+		String archiveId = WebArchive.identity(archive);
+		File indexDir = indexLoc != null ? new File(indexLoc) : Indexer.indexDir(indexBase, archive, archiveId);
+		Indexer indexer;
+		if (Indexer.isIndexed(indexDir, archiveId)) {
+			System.out.println("Using existing index " + indexDir + ".");
+			indexer = new Indexer(indexDir);
+		} else {
+			indexer = new Indexer(indexDir, archiveId, settings);
+			index(archive, indexer, settings);
+			System.out.println("Index stored in " + indexDir + ".");
+		}
+		return indexer;
+	}
+	
+	/**
+	 * runs interactive session
+	 * indexes the archive in background unless it is indexed already
+	 * answers queries from the input until empty line,
+	 * while indexing the queries see documents indexed so far
+	 * @param br user's input
+	 * @param archive
+	 * @param indexBase directory with persistent indexes
+	 * @param settings indexing pipeline configuration
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	public static void interactive(BufferedReader br, final String archive, String indexBase,
+			final IndexSettings settings) throws InterruptedException, IOException {
+		String archiveId = WebArchive.identity(archive);
+		File indexDir = Indexer.indexDir(indexBase, archive, archiveId);
+		final Indexer indexer;
+		Thread indexing = null;
+		if (Indexer.isIndexed(indexDir, archiveId)) {
+			System.out.println("Using existing index " + indexDir + ".");
+			indexer = new Indexer(indexDir);
+		} else {
+			indexer = new Indexer(indexDir, archiveId, settings);
+			indexing = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						index(archive, indexer, settings);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			indexing.start();
+		}
+		while (true) {
+			System.out.println("Pleae enter the query (empty to quit):");
+			String query = br.readLine();
+			if (query == null || query.trim().length() == 0) break;
+			if (indexing != null && indexing.isAlive())
+				System.out.println("Indexing in progress, " + indexer.numDocs() + " documents searchable.");
+			search(query, indexer);
+		}
+		if (indexing != null) {
+			System.out.println("Waiting for indexing to finish.");
+			indexing.join();
+		}
+		indexer.close();
+	}
+	
+	/**
+	 * reads archive into raw ExtendedWarcRecords, parses them to LuceneDocuments
+	 * indexes prepared LuceneDocuments into persistent index
+	 * @param archive
+	 * @param indexer configured indexer
+	 * @param settings indexing pipeline configuration
+	 * @throws InterruptedException 
+	 */
+	public static void index(String archive, final Indexer indexer, IndexSettings settings) throws InterruptedException {
+		// prepare queues and threads
+		System.out.println("Configuring reader, parser and indexer.");
+		final RecordQueue<ExtendedWarcRecord> rawQueue = new RecordQueue<ExtendedWarcRecord>("raw", settings.getQueueBytes());
+		final RecordQueue<PageRecord> parsedQueue = indexer.getQueue();
+		Metrics metrics = indexer.getMetrics();
+		WebArchive wa = new WebArchive(archive, rawQueue, settings.getReadThreadNo(), settings.getMaxPageBytes(),
+				indexer.getProgress(), metrics);
+		final Parser parser = new Parser(rawQueue, parsedQueue, settings, indexer.getProgress(), metrics);
+		metrics.gauge("raw", rawQueue);
+		metrics.gauge("parsed", parsedQueue);
+		metrics.gauge("parse.threads", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return parser.getPool().size();
+			}
+		});
+		metrics.gauge("index.threads", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return indexer.getPool().size();
+			}
+		});
+		// run read-parse-index pipeline
 		Thread produce = new Thread(wa);
+		Thread parse = new Thread(parser);
 		Thread consume = new Thread(indexer);
+		long gcCount = JvmStats.gcCount();
+		long gcTime = JvmStats.gcTimeMs();
 		long startTime = System.nanoTime();
-		System.out.println("Parsing and indexing..");
+		System.out.println("Reading, parsing and indexing with " + settings.getReadThreadNo() + " reader, "
+				+ settings.getParseThreadNo() + " parser (" + settings.getExtractor() + ") and "
+				+ settings.getThreadNo() + " indexer threads..");
+		// report metrics and queue occupancy while the pipeline runs
+		MetricsReporter reporter = createReporter(metrics, settings, true);
+		Thread monitor = new Thread(reporter);
+		monitor.setDaemon(true);
+		Autotuner autotuner = new Autotuner(rawQueue, parser, indexer, Autotuner.DEFAULT_INTERVAL_MS);
+		Thread autotune = new Thread(autotuner);
+		autotune.setDaemon(true);
 		produce.start();
+		parse.start();
 		consume.start();
+		monitor.start();
+		if (settings.getAutotune())
+			autotune.start();
 		produce.join();
 		double delta = (System.nanoTime() - startTime)/1000000000.0;
+		System.out.println("Reading done in " + delta + "s.");
+		parse.join();
+		delta = (System.nanoTime() - startTime)/1000000000.0;
 		System.out.println("Parsing done in " + delta + "s.");
+		// parsers are gone, there is nothing to balance anymore
+		autotuner.stop();
+		autotune.interrupt();
 		consume.join();
 		delta = (System.nanoTime() - startTime)/1000000000.0;
 		System.out.println("Indexing done in " + delta + "s.");
-		// search
+		reporter.stop();
+		monitor.interrupt();
+		monitor.join();
+		reporter.reportTotals();
+		reporter.close();
+		if (settings.getAutotune())
+			System.out.println(autotuner.getStats());
+		System.out.println(rawQueue.getStats());
+		System.out.println(parsedQueue.getStats());
+		System.out.println("GC: " + (JvmStats.gcCount() - gcCount) + " collections in " + (JvmStats.gcTimeMs() - gcTime)
+				+ "ms. Allocated " + JvmStats.perRecord(parser.getAllocatedBytes(), parser.getParsedNo())
+				+ " by parsers, " + JvmStats.perRecord(indexer.getAllocatedBytes(), indexer.getProcessedNo())
+				+ " by indexers.");
+	}
+	
+	/**
+	 * looks captures up in the CaptureIndex sidecar of the index
+	 * writes the sidecar first if the index does not have one yet
+	 * prints CDX lines (url, date, recordId, trecId, offset, length, file)
+	 * @param indexDir directory of the index
+	 * @param url exact url or null
+	 * @param urlPrefix url prefix or null
+	 * @param recordId WARC-Record-ID or null
+	 * @param trecId WARC-TREC-ID or null
+	 * @param max maximum number of captures of url prefix
+	 * @throws IOException
+	 */
+	public static void lookup(File indexDir, String url, String urlPrefix, String recordId, String trecId, int max)
+			throws IOException {
+		if (!CaptureIndex.exists(indexDir)) {
+			System.out.println("Writing capture index of " + indexDir + ".");
+			Indexer indexer = new Indexer(indexDir);
+			indexer.writeCaptures();
+			indexer.close();
+		}
+		CaptureIndex captures = new CaptureIndex(indexDir);
+		long startTime = System.nanoTime();
+		List<CaptureIndex.Capture> found;
+		if (url != null) {
+			found = captures.lookupUrl(url);
+		} else if (urlPrefix != null) {
+			found = captures.lookupUrlPrefix(urlPrefix, max);
+		} else if (recordId != null) {
+			found = captures.lookupRecordId(recordId);
+		} else {
+			found = captures.lookupTrecId(trecId);
+		}
+		double delta = (System.nanoTime() - startTime)/1000000.0;
+		for (CaptureIndex.Capture c: found) {
+			System.out.println(c);
+		}
+		System.out.println("Found " + found.size() + " captures in " + delta + "ms.");
+	}
+	
+	/**
+	 * runs a search for given query
+	 * displays results
+	 * @param query
+	 * @param indexer indexer with the index to search
+	 */
+	public static void search(String query, Indexer indexer) {
 		System.out.println("Searching for \"" + query + "\".");
-		startTime = System.nanoTime();
+		long startTime = System.nanoTime();
 		ArrayList<Result> results = indexer.search(query);
-		delta = (System.nanoTime() - startTime)/1000000000.0;
+		double delta = (System.nanoTime() - startTime)/1000000000.0;
 		// display
 		System.out.println("Found " + results.size() + " hits in " + delta + "s.");
 		System.out.println();
@@ -89,7 +423,7 @@ public class WarcSearch {
 	}
 	
 	/**
-	 * determines the number of consument threads to use for indexing
+	 * determines the number of threads to use for reading, parsing or indexing
 	 * is based on cli argument, but makes adjustments
 	 * if no or wrong option or "0" from -i is specified - set to number of logical cores
 	 * limit to no more than 4 times number of logical cores
@@ -113,11 +447,168 @@ public class WarcSearch {
 		return threadNo;
 	}
 	
+	/**
+	 * determines near-real-time searcher refresh interval
+	 * default is used if no or wrong option is specified
+	 * @param refreshStr string option --refresh parsed from command line
+	 * @return refresh interval in ms
+	 */
+	public static long determineRefreshInterval(String refreshStr) {
+		try {
+			long refreshMs = Long.parseLong(refreshStr);
+			if (refreshMs > 0) return refreshMs;
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		return Indexer.DEFAULT_REFRESH_MS;
+	}
+	
+	/**
+	 * determines budget of bytes in flight between pipeline stages
+	 * default is used if no or wrong option is specified
+	 * @param queueMbStr string option --queue-mb parsed from command line
+	 * @return budget in bytes
+	 */
+	public static long determineQueueBytes(String queueMbStr) {
+		try {
+			long queueMb = Long.parseLong(queueMbStr);
+			if (queueMb > 0) return queueMb * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		return IndexSettings.DEFAULT_QUEUE_BYTES;
+	}
+	
+	/**
+	 * determines cap of page bytes
+	 * default is used if no or wrong option is specified
+	 * @param maxPageKbStr string option --max-page-kb parsed from command line
+	 * @return cap in bytes, 0 for no cap
+	 */
+	public static long determineMaxPageBytes(String maxPageKbStr) {
+		try {
+			long maxPageKb = Long.parseLong(maxPageKbStr);
+			if (maxPageKb >= 0) return maxPageKb * 1024;
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		return IndexSettings.DEFAULT_MAX_PAGE_BYTES;
+	}
+	
+	/**
+	 * determines interval of checkpoint commits
+	 * default is used if no or wrong option is specified
+	 * @param checkpointStr string option --checkpoint parsed from command line (seconds)
+	 * @return interval in ms, 0 if checkpoints are disabled
+	 */
+	public static long determineCheckpointInterval(String checkpointStr) {
+		try {
+			long checkpoint = Long.parseLong(checkpointStr);
+			if (checkpoint >= 0) return checkpoint * 1000;
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		return IndexSettings.DEFAULT_CHECKPOINT_MS;
+	}
+	
+	/**
+	 * parses positive integer option
+	 * default is used if no or wrong option is specified
+	 * @param str string option parsed from command line
+	 * @param defaultValue default value
+	 * @return the value
+	 */
+	public static int determinePositive(String str, int defaultValue) {
+		try {
+			int value = Integer.parseInt(str);
+			if (value > 0) return value;
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * creates indexing pipeline configuration from cli arguments
+	 * @param cli parsed command line
+	 * @return the settings
+	 */
+	public static IndexSettings parseSettings(CommandLine cli) {
+		IndexSettings settings = new IndexSettings();
+		settings.setThreadNo(determineNumberOfThreads(cli.getOptionValue("t", "0")));
+		settings.setParseThreadNo(determineNumberOfThreads(cli.getOptionValue("p", "0")));
+		settings.setReadThreadNo(determineNumberOfThreads(cli.getOptionValue("r", "0")));
+		settings.setRefreshMs(determineRefreshInterval(cli.getOptionValue("refresh")));
+		settings.setQueueBytes(determineQueueBytes(cli.getOptionValue("queue-mb")));
+		settings.setMaxPageBytes(determineMaxPageBytes(cli.getOptionValue("max-page-kb")));
+		settings.setShardNo(determinePositive(cli.getOptionValue("shards"), 1));
+		settings.setMergeThreadNo(determinePositive(cli.getOptionValue("merge-threads"), 0));
+		settings.setRamBufferMb(determinePositive(cli.getOptionValue("ram-buffer-mb"), (int) settings.getRamBufferMb()));
+		String shardMode = cli.getOptionValue("shard-mode", IndexSettings.SHARD_MODE_MERGE);
+		if (!shardMode.equals(IndexSettings.SHARD_MODE_MERGE) && !shardMode.equals(IndexSettings.SHARD_MODE_MULTI)) {
+			System.out.println("Unknown shard mode " + shardMode + ", using " + IndexSettings.SHARD_MODE_MERGE + ".");
+			shardMode = IndexSettings.SHARD_MODE_MERGE;
+		}
+		settings.setMergeShards(shardMode.equals(IndexSettings.SHARD_MODE_MERGE));
+		settings.setCheckpointMs(determineCheckpointInterval(cli.getOptionValue("checkpoint")));
+		settings.setResume(cli.hasOption("resume"));
+		settings.setLatestOnly(cli.hasOption("latest-only"));
+		settings.setAutotune(cli.hasOption("autotune"));
+		settings.setMetricsMs(determinePositive(cli.getOptionValue("metrics-interval"),
+				(int) (MetricsReporter.DEFAULT_INTERVAL_MS / 1000)) * 1000L);
+		settings.setMetricsFile(cli.getOptionValue("metrics-file"));
+		String nearDuplicates = cli.getOptionValue("near-duplicates", IndexSettings.NEAR_DUPLICATES_OFF);
+		if (!nearDuplicates.equals(IndexSettings.NEAR_DUPLICATES_OFF)
+				&& !nearDuplicates.equals(IndexSettings.NEAR_DUPLICATES_SKIP)
+				&& !nearDuplicates.equals(IndexSettings.NEAR_DUPLICATES_MARK)) {
+			System.out.println("Unknown near-duplicates mode " + nearDuplicates + ", using "
+					+ IndexSettings.NEAR_DUPLICATES_OFF + ".");
+			nearDuplicates = IndexSettings.NEAR_DUPLICATES_OFF;
+		}
+		settings.setNearDuplicates(nearDuplicates);
+		String extractor = cli.getOptionValue("extractor", IndexSettings.EXTRACTOR_STREAM);
+		if (!extractor.equals(IndexSettings.EXTRACTOR_JSOUP) && !extractor.equals(IndexSettings.EXTRACTOR_STREAM)) {
+			System.out.println("Unknown extractor " + extractor + ", using " + IndexSettings.EXTRACTOR_STREAM + ".");
+			extractor = IndexSettings.EXTRACTOR_STREAM;
+		}
+		settings.setExtractor(extractor);
+		return settings;
+	}
+	
+	/**
+	 * creates result cache from cli arguments
+	 * defaults are used if no or wrong option is specified
+	 * @param entriesStr string option --cache-entries parsed from command line
+	 * @param mbStr string option --cache-mb parsed from command line
+	 * @return the cache or null if it's disabled
+	 */
+	public static QueryCache createCache(String entriesStr, String mbStr) {
+		int entries = QueryCache.DEFAULT_MAX_ENTRIES;
+		long bytes = QueryCache.DEFAULT_MAX_BYTES;
+		try {
+			entries = Integer.parseInt(entriesStr);
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		try {
+			bytes = Long.parseLong(mbStr) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			// use default
+		}
+		if (entries <= 0 || bytes <= 0) return null;
+		return new QueryCache(entries, bytes);
+	}
+	
 	/**
 	 * main
 	 * parses the command line arguments
-	 * if run in interctive mode then asks for query and archive and runs search
-	 * if run with proper arguments then just runs search
+	 * "index" mode (re)builds persistent index of the archive
+	 * "search" mode searches already built index of the archive
+	 * "batch" mode evaluates topics file and writes TREC run file
+	 * "serve" mode answers queries over local HTTP
+	 * "lookup" mode finds captures by url, url prefix, record id or trec id
+	 * without mode the archive is indexed if needed and searched
+	 * if run in interctive mode then asks for archive and queries and runs searches
 	 * otherwise displays help message
 	 * @param args command line arguments
 	 */
@@ -129,20 +620,107 @@ public class WarcSearch {
 		// parses the options
 		try {
 	        CommandLine cli = parser.parse(options, args);
-			if (cli.hasOption("a") && cli.hasOption("q")) {
-				String query = cli.getOptionValue("q");
+	        String mode = cli.getArgs().length > 0 ? cli.getArgs()[0] : "";
+	        String indexBase = cli.getOptionValue("x", Indexer.DEFAULT_INDEX_BASE);
+			IndexSettings settings = parseSettings(cli);
+			if (mode.equals(MODE_INDEX) && cli.hasOption("a")) {
 				String archive = cli.getOptionValue("a");
-				int threads = determineNumberOfThreads(cli.getOptionValue("t", "0"));
-				run(query, archive, threads);
-			} else if (cli.hasOption("i")) {
+				String archiveId = WebArchive.identity(archive);
+				File indexDir = cli.hasOption("index") ? new File(cli.getOptionValue("index"))
+						: Indexer.indexDir(indexBase, archive, archiveId);
+				if (settings.getResume() && Indexer.isIndexed(indexDir, archiveId)) {
+					System.out.println("The archive is indexed already in " + indexDir + ".");
+				} else if (!Indexer.looksLikeIndex(indexDir)) {
+					// rebuilding deletes the old index, it must not take other files with it
+					System.err.println(indexDir + " holds files that are not part of an index, "
+							+ "index into an empty directory or an existing index.");
+					System.exit(1);
+				} else {
+					Indexer indexer = new Indexer(indexDir, archiveId, settings);
+					index(archive, indexer, settings);
+					indexer.close();
+					System.out.println("Index stored in " + indexDir + ".");
+				}
+			} else if (mode.equals(MODE_UPDATE) && cli.hasOption("a") && cli.hasOption("index")) {
+				String archive = cli.getOptionValue("a");
+				String archiveId = WebArchive.identity(archive);
+				File indexDir = new File(cli.getOptionValue("index"));
+				if (Indexer.isIndexed(indexDir, archiveId)) {
+					System.out.println("The archive is indexed already in " + indexDir + ".");
+				} else if (Indexer.isSharded(indexDir)) {
+					System.err.println("Index with kept shards can not be updated, build it with --shard-mode merge.");
+					System.exit(1);
+				} else {
+					settings.setUpdate(true);
+					Indexer indexer = new Indexer(indexDir, archiveId, settings);
+					index(archive, indexer, settings);
+					System.out.println("Index updated in " + indexDir + ", " + indexer.numDocs() + " documents.");
+					indexer.close();
+				}
+			} else if (mode.equals(MODE_SEARCH) && cli.hasOption("index") && cli.hasOption("q")) {
+				Indexer indexer = openIndex(null, cli.getOptionValue("index"), indexBase, settings);
+				search(cli.getOptionValue("q"), indexer);
+				indexer.close();
+			} else if (mode.equals(MODE_SEARCH) && cli.hasOption("a") && cli.hasOption("q")) {
+				String archive = cli.getOptionValue("a");
+				String archiveId = WebArchive.identity(archive);
+				File indexDir = Indexer.indexDir(indexBase, archive, archiveId);
+				if (!Indexer.isIndexed(indexDir, archiveId)) {
+					System.err.println("The archive is not indexed yet, run \"warcsearch index -a " + archive + "\" first.");
+					System.exit(1);
+				}
+				Indexer indexer = new Indexer(indexDir);
+				search(cli.getOptionValue("q"), indexer);
+				indexer.close();
+			} else if (mode.equals(MODE_LOOKUP) && (cli.hasOption("a") || cli.hasOption("index"))
+					&& (cli.hasOption("url") || cli.hasOption("url-prefix") || cli.hasOption("record-id")
+							|| cli.hasOption("trec-id"))) {
+				File indexDir;
+				if (cli.hasOption("index")) {
+					indexDir = new File(cli.getOptionValue("index"));
+				} else {
+					String archive = cli.getOptionValue("a");
+					indexDir = Indexer.indexDir(indexBase, archive, WebArchive.identity(archive));
+				}
+				if (!Indexer.exists(indexDir)) {
+					System.err.println("There is no index in " + indexDir + ".");
+					System.exit(1);
+				}
+				lookup(indexDir, cli.getOptionValue("url"), cli.getOptionValue("url-prefix"),
+						cli.getOptionValue("record-id"), cli.getOptionValue("trec-id"),
+						determinePositive(cli.getOptionValue("depth"), DEFAULT_PREFIX_CAPTURES));
+			} else if (mode.equals(MODE_BATCH) && (cli.hasOption("a") || cli.hasOption("index"))
+					&& cli.hasOption("topics")) {
+				int depth = BatchSearch.DEFAULT_DEPTH;
+				try {
+					depth = Math.max(1, Integer.parseInt(cli.getOptionValue("depth")));
+				} catch (NumberFormatException e) {
+					// use default
+				}
+				batch(cli.getOptionValue("topics"), cli.getOptionValue("o", "run.txt"),
+						cli.getOptionValue("run-tag", BatchSearch.DEFAULT_RUN_TAG), depth,
+						determineNumberOfThreads(cli.getOptionValue("search-threads", "0")),
+						createCache(cli.getOptionValue("cache-entries"), cli.getOptionValue("cache-mb")),
+						cli.getOptionValue("a"), cli.getOptionValue("index"), indexBase, settings);
+			} else if (mode.equals(MODE_SERVE) && (cli.hasOption("a") || cli.hasOption("index"))) {
+				int port = QueryServer.DEFAULT_PORT;
+				try {
+					port = Integer.parseInt(cli.getOptionValue("port"));
+				} catch (NumberFormatException e) {
+					// use default
+				}
+				serve(port, determineNumberOfThreads(cli.getOptionValue("search-threads", "0")),
+						createCache(cli.getOptionValue("cache-entries"), cli.getOptionValue("cache-mb")),
+						cli.getOptionValue("a"), cli.getOptionValue("index"), indexBase, settings);
+			} else if (mode.equals("") && cli.hasOption("a") && cli.hasOption("q")) {
+				run(cli.getOptionValue("q"), cli.getOptionValue("a"), indexBase, settings);
+			} else if (mode.equals("") && cli.hasOption("i")) {
 				BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 				System.out.println("Pleae enter the path to WARC archive:");
 				String archive = br.readLine();
-				System.out.println("Pleae enter the query:");
-				String query = br.readLine();
-				run(query, archive, determineNumberOfThreads("0"));
+				interactive(br, archive, indexBase, settings);
 			} else {
-				formatter.printHelp("warcsearch", options );
+				formatter.printHelp("warcsearch [index|update|search|lookup|batch|serve]", options );
 				System.exit(1);
 			}
 		} catch (ParseException e) {
@@ -150,7 +728,7 @@ public class WarcSearch {
 	        e.getStackTrace();
 	    } catch (IOException e) {
 	        System.err.println("There was a problem with user input.");
-	        e.getStackTrace();
+	        System.err.println(e.getMessage());
 	    } catch (InterruptedException e) {
 	        System.err.println("There was a problem with threads.");
 	        e.getStackTrace();
@@ -1,45 +1,303 @@
 package warcsearch;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-
-import org.jwat.warc.WarcReader;
-import org.jwat.warc.WarcReaderFactory;
-import org.jwat.warc.WarcRecord;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * WebArchive class for parsing the WARC full of WarcRecords
- * parses WARC file into array of ExtendedWarcRecords
- * is able to return the records as array of LuceneDocuments for indexing
+ * parses WARC files into ExtendedWarcRecords
+ * the archive is one WARC file, directory of them, glob (/crawl/*.warc.gz)
+ * or list file with one path per line
+ * files are cut into byte ranges, ranges of one file are queued for one reader,
+ * readers that run out of their ranges steal ranges from the end of others' queues,
+ * so few huge files do not leave the other readers idle
+ * progress of the ranges can be tracked for checkpoints, resumed reading
+ * reads just the ranges left in the checkpoint from their checkpoints
  */
 public class WebArchive implements Runnable {
 	
 	/** warc header types */
-	private static final String WARC_TYPE = "WARC-Type";
 	private static final String WARC_TYPE_RESPONSE = "response";
 	private static final String WARC_TYPE_WARCINFO = "warcinfo";
 	
+	/** start of a record, it follows the empty line closing the previous one */
+	private static final byte[] RECORD_START = "WARC/".getBytes();
+	
+	/** bytes of the empty line before the record start, "\r\n\r\n" at most */
+	private static final int SEPARATOR_LENGTH = 4;
+	
+	/** buffer size for searching record starts */
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+	
+	/** size of byte ranges the files are cut into */
+	private static final long RANGE_SIZE = 64L * 1024 * 1024;
+	
+	/** archive file extensions taken from directories */
+	private static final String[] ARCHIVE_SUFFIXES = new String[] { ".warc", ".warc.gz" };
+	
 	/** produced documents go to this shared queue */
-	private final LinkedBlockingQueue<ExtendedWarcRecord> _queue;
+	private final RecordQueue<ExtendedWarcRecord> _queue;
 	
 	/** path to WARC archive */
 	private final String _archiveLoc;
 	
-	/** number of consumer threads */
-	private final int _threadNo;
+	/** number of reading threads, each reads its own part of archive */
+	private final int _readerNo;
+	
+	/** byte ranges to read, one queue per reader */
+	private List<LinkedBlockingDeque<Range>> _ranges;
+	
+	/** number of responses dropped before parsing (not 2xx, not html) */
+	private final AtomicLong _skipped = new AtomicLong();
+	
+	/** cap of page bytes, 0 for no cap */
+	private final long _maxPageBytes;
+	
+	/** number of pages cut down to the cap and bytes cut off */
+	private final AtomicLong _truncated = new AtomicLong();
+	private final AtomicLong _truncatedBytes = new AtomicLong();
+	
+	/** number of ranges taken from other readers' queues */
+	private final AtomicLong _stolen = new AtomicLong();
+	
+	/** number of ranges not read to the end because of read errors and bytes left out */
+	private final AtomicLong _failed = new AtomicLong();
+	private final AtomicLong _failedBytes = new AtomicLong();
+	
+	/** progress of reading and indexing, null if not tracked */
+	private final IndexProgress _progress;
+	
+	/** records and bytes read and time spent reading them */
+	private final Metrics.Counter _readRecords;
+	private final Metrics.Counter _readBytes;
+	private final Metrics.Timer _readTime;
+	private final Metrics.Counter _readFailures;
 	
 	/**
 	 * constructor
-	 * @param archiveLoc location of WARC archive
+	 * @param archiveLoc location of WARC archive (file, directory, glob or list file)
+	 * @param queue raw records go here, consumed by Parser, closed at the end
+	 * @param readerNo number of reading threads
+	 * @param maxPageBytes cap of page bytes, the rest of bigger pages is not indexed, 0 for no cap
+	 * @param progress progress to be tracked (resumed if it comes from checkpoint), null if not tracked
+	 * @param metrics registry for read.records, read.bytes, read.time and read.failures
 	 */
-	public WebArchive(String archiveLoc, LinkedBlockingQueue<ExtendedWarcRecord> queue, int threadNo) {
+	public WebArchive(String archiveLoc, RecordQueue<ExtendedWarcRecord> queue, int readerNo, long maxPageBytes,
+			IndexProgress progress, Metrics metrics) {
 		_queue = queue;
 		_archiveLoc = archiveLoc;
-		_threadNo = threadNo;
+		_readerNo = readerNo;
+		_maxPageBytes = maxPageBytes;
+		_progress = progress;
+		_readRecords = metrics.counter("read.records");
+		_readBytes = metrics.counter("read.bytes");
+		_readTime = metrics.timer("read.time");
+		_readFailures = metrics.counter("read.failures");
+	}
+	
+	/**
+	 * identity of the archive - canonical path, size and modification time
+	 * of every file, hashed when there are more of them
+	 * indexes are kept per archive identity, so changed archive gets new index
+	 * @param archiveLoc location of WARC archive
+	 * @return identity string
+	 * @throws IOException when the archive does not exist
+	 */
+	public static String identity(String archiveLoc) throws IOException {
+		List<File> files = listFiles(archiveLoc);
+		if (files.size() == 1 && new File(archiveLoc).isFile() && files.get(0).equals(new File(archiveLoc)))
+			return identity(files.get(0));
+		StringBuilder sb = new StringBuilder();
+		for (File file: files)
+			sb.append(identity(file)).append('\n');
+		String hash;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(sb.toString().getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			for (byte b: digest)
+				hex.append(String.format("%02x", b));
+			hash = hex.toString();
+		} catch (Exception e) {
+			hash = Integer.toHexString(sb.toString().hashCode());
+		}
+		return new File(archiveLoc).getAbsolutePath() + "|" + files.size() + " files|" + hash;
+	}
+	
+	/**
+	 * identity of one file
+	 */
+	private static String identity(File file) throws IOException {
+		return file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified();
+	}
+	
+	/**
+	 * resolves archive location to WARC files
+	 * directory - all .warc and .warc.gz files in it and its subdirectories
+	 * glob - files of the directory matching the name pattern (* and ?)
+	 * WARC file - the file itself
+	 * other file - list file with one path per line (relative to the list file),
+	 * empty lines and lines starting with # are skipped
+	 * @param archiveLoc location of WARC archive
+	 * @return sorted WARC files
+	 * @throws IOException when there are no files
+	 */
+	public static List<File> listFiles(String archiveLoc) throws IOException {
+		File loc = new File(archiveLoc);
+		List<File> files = new ArrayList<File>();
+		if (loc.isDirectory()) {
+			listDirectory(loc, files);
+		} else if (loc.getName().indexOf('*') >= 0 || loc.getName().indexOf('?') >= 0) {
+			File dir = loc.getAbsoluteFile().getParentFile();
+			Pattern glob = globPattern(loc.getName());
+			File[] matches = dir.listFiles();
+			if (matches != null) {
+				for (File f: matches) {
+					if (f.isFile() && glob.matcher(f.getName()).matches()) files.add(f);
+				}
+			}
+		} else if (loc.isFile()) {
+			if (isArchive(loc)) {
+				files.add(loc);
+			} else {
+				readList(loc, files);
+			}
+		} else {
+			throw new IOException("Archive " + archiveLoc + " does not exist.");
+		}
+		if (files.isEmpty())
+			throw new IOException("There are no WARC files in " + archiveLoc + ".");
+		Collections.sort(files);
+		return files;
+	}
+	
+	/**
+	 * translates file name glob to regex
+	 * only * and ? are wildcards, the rest is matched literally
+	 * @param glob the name pattern
+	 * @return the regex
+	 */
+	private static Pattern globPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int literal = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c != '*' && c != '?') continue;
+			if (i > literal) regex.append(Pattern.quote(glob.substring(literal, i)));
+			regex.append(c == '*' ? ".*" : ".");
+			literal = i + 1;
+		}
+		if (glob.length() > literal) regex.append(Pattern.quote(glob.substring(literal)));
+		return Pattern.compile(regex.toString());
+	}
+	
+	/**
+	 * adds WARC files of the directory and its subdirectories
+	 */
+	private static void listDirectory(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) return;
+		for (File f: children) {
+			if (f.isDirectory()) {
+				listDirectory(f, files);
+			} else {
+				for (String suffix: ARCHIVE_SUFFIXES) {
+					if (f.getName().endsWith(suffix)) {
+						files.add(f);
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * adds files of list file
+	 */
+	private static void readList(File list, List<File> files) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(list));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				File f = new File(line);
+				if (!f.isAbsolute()) f = new File(list.getAbsoluteFile().getParentFile(), line);
+				if (!f.isFile())
+					throw new IOException("Archive " + f + " listed in " + list + " does not exist.");
+				files.add(f);
+			}
+		} finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * @return true if the file starts as WARC or gzip
+	 */
+	private static boolean isArchive(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (GzipWarcReader.isGzip(raf.getChannel())) return true;
+			byte[] start = new byte[RECORD_START.length];
+			return raf.read(start) == start.length && matches(start, 0, RECORD_START);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * reads one record back from the archive (lazy retrieval of search results)
+	 * plain record is read into heap buffer of its length, gzip member is inflated,
+	 * so the payload stays valid after the file is closed
+	 * @param file archive file
+	 * @param offset offset of the record (of its gzip member in .warc.gz)
+	 * @param length length of the record (of its gzip member)
+	 * @return the record
+	 * @throws IOException when there is no such record
+	 */
+	public static ExtendedWarcRecord readRecord(File file, long offset, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ExtendedWarcRecord record;
+			if (GzipWarcReader.isGzip(channel)) {
+				GzipWarcReader reader = new GzipWarcReader(channel, offset, offset + 1);
+				try {
+					record = reader.next();
+				} finally {
+					reader.close();
+				}
+			} else {
+				if (length > Integer.MAX_VALUE)
+					throw new IOException("Too long WARC record at offset " + offset + " of " + file + ".");
+				ByteBuffer buf = ByteBuffer.allocate((int) length);
+				while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) >= 0);
+				buf.flip();
+				record = MappedWarcReader.parseRecord(buf, offset);
+			}
+			if (record == null || record.getOffset() != offset)
+				throw new IOException("No WARC record at offset " + offset + " of " + file + ".");
+			record.setSourceFile(file.getPath());
+			return record;
+		} finally {
+			raf.close();
+		}
 	}
 	
 	/**
@@ -52,110 +310,350 @@ public class WebArchive implements Runnable {
 	}
 	
 	/**
-	 * reads and parses WARC file into ExtendedWarcRecords
+	 * reads WARC files into raw ExtendedWarcRecords
+	 * html parsing is left for the Parser stage
+	 * the files are cut into byte ranges, ranges of file i go to the queue
+	 * of reader i % _readerNo, the readers align range starts to record starts
 	 * @param archiveLoc
-	 * @return parsed array of ExtendedWarcRecord
 	 */
 	private void readFile(String archiveLoc) {
 		try {
-			InputStream in = new FileInputStream(new File(archiveLoc));
-			WarcReader reader = WarcReaderFactory.getReader(in);
-			WarcRecord record;
-			while ((record = reader.getNextRecord()) != null) {
-				String type = record.getHeader(WARC_TYPE).value;
-				if (type.equals(WARC_TYPE_RESPONSE)) {
-					_queue.put(new ExtendedWarcRecord(record)); // <--
-				} else if (type.equals(WARC_TYPE_WARCINFO)) { 
-					// nothing special just the warc main header
-					// stupid library returns it as a payload
-					// ignore
-				} else {
-					System.out.println("INFO found WARC-Type " + type);
+			_ranges = new ArrayList<LinkedBlockingDeque<Range>>(_readerNo);
+			for (int i = 0; i < _readerNo; i++)
+				_ranges.add(new LinkedBlockingDeque<Range>());
+			int rangeNo = 0;
+			int fileNo;
+			if (_progress != null && _progress.isResumed()) {
+				// ranges left in checkpoint, from their checkpoints
+				Map<String, Range> files = new HashMap<String, Range>();
+				for (int i = 0; i < _progress.getRangeNo(); i++) {
+					String path = _progress.getFile(i);
+					Range file = files.get(path);
+					if (file == null) {
+						file = openRange(new File(path), files.size(), 0, 0, -1);
+						files.put(path, file);
+					}
+					_ranges.get(file._fileNo % _readerNo).add(new Range(file._file, file._fileNo, file._gzip, file._offsets,
+							_progress.getPosition(i), _progress.getEnd(i), i));
+					rangeNo++;
 				}
+				fileNo = files.size();
+			} else {
+				List<File> files = listFiles(archiveLoc);
+				// single file is still read by all readers
+				int minRangeNo = Math.max(1, _readerNo / files.size());
+				for (int f = 0; f < files.size(); f++) {
+					File file = files.get(f);
+					long length = file.length();
+					int n = (int) Math.max(minRangeNo, (length + RANGE_SIZE - 1) / RANGE_SIZE);
+					for (int i = 0; i < n; i++) {
+						long start = length / n * i;
+						long end = i == n - 1 ? length : length / n * (i + 1);
+						int id = _progress != null ? _progress.addRange(file.getPath(), start, end) : -1;
+						_ranges.get(f % _readerNo).add(openRange(file, f, start, end, id));
+						rangeNo++;
+					}
+				}
+				fileNo = files.size();
 			}
-			/** PARALLELIZE SOMEDAY
 			List<Thread> threads = new ArrayList<Thread>();
-			Semaphore semaphore = new Semaphore(1);
-	    	for (int i = 0; i < _threadNo; i++) {
-	    		threads.add(new Thread(new WebArchiveTask(reader, _queue, semaphore, i)));
-	        }
-	    	for (Thread t: threads)
-	    		t.start();
-	    	for (Thread t: threads)
-	    		t.join();
-			in.close();
-			*/
-			// indicate last record in queue with empty record
-			// for each consumer thread (ugly hack, whatever)
-			for (int i = 0; i < _threadNo; i++)
-				_queue.put(new ExtendedWarcRecord());
+			for (int i = 0; i < _readerNo; i++) {
+				threads.add(new Thread(new WebArchiveTask(i)));
+			}
+			for (Thread t: threads)
+				t.start();
+			for (Thread t: threads)
+				t.join();
+			System.out.println("Read " + fileNo + " files in " + rangeNo + " ranges, "
+					+ _stolen.get() + " of them stolen by idle readers.");
+			System.out.println("Skipped " + _skipped.get() + " responses that are not successful html pages.");
+			if (_truncated.get() > 0)
+				System.out.println("Truncated " + _truncated.get() + " pages to " + _maxPageBytes / 1024 + "kB, "
+						+ _truncatedBytes.get() / 1024 + "kB not indexed.");
+			if (_failed.get() > 0)
+				System.err.println("Failed to read " + _failed.get() + " ranges to the end, "
+						+ _failedBytes.get() / 1024 + "kB not indexed.");
 		} catch (Exception e) {
 			System.err.println("There was a problem with parsing the Web Archive.");
 			e.printStackTrace();
 			System.exit(1);
+		} finally {
+			// let the parsers finish
+			_queue.close();
 		}
 	}
 	
 	/**
-	 * WebArchiveTask runnable for enables producing to be parallel
-	 * but not really when used with WARC library, because it sucks
-	 * meiyou deep copy(!) and meiyou thread safe (how come?)
+	 * creates range of the file
+	 * checks whether the file is gzipped and reads its member offsets
+	 * @param file archive file
+	 * @param fileNo number of the file
+	 * @param start start of range
+	 * @param end end of range (exclusive)
+	 * @param id id of the range in _progress, -1 if not tracked
+	 * @return the range
+	 * @throws IOException
 	 */
-	@SuppressWarnings("unused")
-	private class WebArchiveTask implements Runnable {
+	private static Range openRange(File file, int fileNo, long start, long end, int id) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			boolean gzip = GzipWarcReader.isGzip(raf.getChannel());
+			long[] offsets = gzip ? GzipWarcReader.readOffsets(file) : null;
+			return new Range(file, fileNo, gzip, offsets, start, end, id);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * finds the first known member offset at or after given position
+	 * @param offsets sorted member offsets
+	 * @param from position to search from
+	 * @param length length of the archive
+	 * @return the offset or length if there is none
+	 */
+	private static long findOffset(long[] offsets, long from, long length) {
+		int i = Arrays.binarySearch(offsets, from);
+		if (i < 0) i = -i - 1;
+		return i < offsets.length ? offsets[i] : length;
+	}
+	
+	/**
+	 * finds the first record start at or after given position
+	 * record start is the "WARC/" version line following the empty line
+	 * that closes the previous record, with CRLF or LF line ends
+	 * payloads may hold the same bytes (archived WARC files), so every candidate
+	 * has to parse as a record, the search goes on after the ones that do not
+	 * @param raf opened archive
+	 * @param from position to search from
+	 * @param length length of the archive
+	 * @return offset of the record start or length if there is none
+	 * @throws IOException
+	 */
+	private static long findRecordStart(RandomAccessFile raf, long from, long length) throws IOException {
+		if (from == 0) return 0;
+		// step back so the separator right before from is found as well
+		long pos = Math.max(0, from - SEPARATOR_LENGTH);
+		// last rejected candidate, the chunks overlap
+		long rejected = -1;
+		byte[] buf = new byte[SCAN_BUFFER_SIZE];
+		while (pos < length) {
+			raf.seek(pos);
+			int n = raf.read(buf);
+			if (n <= 0) break;
+			for (int i = 0; i + RECORD_START.length <= n; i++) {
+				long start = pos + i;
+				if (start < from || start <= rejected) continue;
+				if (matches(buf, i, RECORD_START) && followsEmptyLine(buf, i)) {
+					if (isRecordStart(raf, start, length)) return start;
+					rejected = start;
+				}
+			}
+			if (pos + n >= length) break;
+			// overlap the chunks so no separator is cut in half
+			pos += n - SEPARATOR_LENGTH - RECORD_START.length + 1;
+		}
+		return length;
+	}
+	
+	/**
+	 * @return true if the bytes before offset are an empty line,
+	 * "\n\n" or "\r\n\r\n" (or the mix of both)
+	 */
+	private static boolean followsEmptyLine(byte[] buf, int offset) {
+		int i = offset - 1;
+		if (i < 0 || buf[i] != '\n') return false;
+		i--;
+		if (i >= 0 && buf[i] == '\r') i--;
+		return i >= 0 && buf[i] == '\n';
+	}
+	
+	/**
+	 * checks that a whole WARC record starts at given offset
+	 * @param raf opened archive
+	 * @param start offset of the candidate
+	 * @param length length of the archive
+	 * @return true if the record parses
+	 */
+	private static boolean isRecordStart(RandomAccessFile raf, long start, long length) {
+		try {
+			return new MappedWarcReader(raf.getChannel(), start, length).next() != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return true if buf contains pattern at given offset
+	 */
+	private static boolean matches(byte[] buf, int offset, byte[] pattern) {
+		for (int j = 0; j < pattern.length; j++) {
+			if (buf[offset + j] != pattern[j]) return false;
+		}
+		return true;
+	}
 	
-		private final WarcReader _reader;
-		private final LinkedBlockingQueue<ExtendedWarcRecord> _queue;
+	/**
+	 * byte range of one archive file
+	 * the start is not aligned yet, reader reads records starting
+	 * at or after the first record start in range and before its end
+	 */
+	private static class Range {
+		
+		private final File _file;
+		private final int _fileNo;
+		private final boolean _gzip;
+		private final long[] _offsets;
+		private final long _start;
+		private final long _end;
+		
+		/** id of the range in _progress, -1 if not tracked */
+		private final int _id;
+		
+		private Range(File file, int fileNo, boolean gzip, long[] offsets, long start, long end, int id) {
+			_file = file;
+			_fileNo = fileNo;
+			_gzip = gzip;
+			_offsets = offsets;
+			_start = start;
+			_end = end;
+			_id = id;
+		}
+	
+	}
+	
+	/**
+	 * WebArchiveTask runnable reads byte ranges of archive files
+	 * takes ranges from the front of its own queue, when it is empty
+	 * steals from the back of the other readers' queues
+	 * every range is read with its own channel and WarcRecordReader,
+	 * in case of .warc.gz archive the task inflates its own gzip members
+	 * the task reads every record starting inside the range,
+	 * the last one may end behind it
+	 */
+	private class WebArchiveTask implements Runnable {
+		
 		private final int _threadNumber;
-		private final Semaphore _semaphore;
+		
+		/** number of records read */
+		private int _read;
 		
 		/**
-		 * constructor keeping reference to opened reader, queue and semaphore
+		 * constructor
 		 * keeps thread number for debugging purposes
-		 * @param reader
-		 * @param queue
-		 * @param semaphore
-		 * @param threadNumber
+		 * @param threadNumber number of the reader and its range queue
 		 */
-		public WebArchiveTask (WarcReader reader, LinkedBlockingQueue<ExtendedWarcRecord> queue,
-				Semaphore semaphore, int threadNumber) {
-			_reader = reader;
-			_queue = queue;
+		public WebArchiveTask(int threadNumber) {
 			_threadNumber = threadNumber;
-			_semaphore = semaphore;
 		}
 		
 		/*
-		 * runs the parallel producing
-		 * the main task is the jsoup html parsing inside ExtendedWarcRecord()
+		 * runs the parallel reading of ranges
 		 */
 		public void run() {
 			try {
-				while (true) {
-					_semaphore.acquire();
-					WarcRecord record = _reader.getNextRecord();
-					_semaphore.release();
-					if (record == null) break;
-					String type = record.getHeader(WARC_TYPE).value;
-					if (type.equals(WARC_TYPE_RESPONSE)) {
-						_queue.put(new ExtendedWarcRecord(record));
-					} else if (type.equals(WARC_TYPE_WARCINFO)) { 
-						// nothing special just the warc main header
-						// stupid library returns it as a payload
-						// ignore
+				Range range;
+				while ((range = nextRange()) != null) {
+					read(range);
+				}
+			} catch (InterruptedException e) {
+				// the pipeline is being torn down
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * @return next range from own queue, stolen range or null when all are taken
+		 */
+		private Range nextRange() {
+			Range range = _ranges.get(_threadNumber).pollFirst();
+			for (int i = 1; range == null && i < _ranges.size(); i++) {
+				range = _ranges.get((_threadNumber + i) % _ranges.size()).pollLast();
+				if (range != null) _stolen.incrementAndGet();
+			}
+			return range;
+		}
+		
+		/**
+		 * reads records of one range
+		 * broken file is reported and skipped, the others are read on
+		 * @param range the range
+		 * @throws InterruptedException
+		 */
+		private void read(Range range) throws InterruptedException {
+			// absolute, records are read back from it by search results
+			String sourceFile = range._file.getAbsolutePath();
+			// end of the last record read, the rest of the range is lost if reading fails
+			long position = range._start;
+			try {
+				RandomAccessFile raf = new RandomAccessFile(range._file, "r");
+				try {
+					long length = range._file.length();
+					WarcRecordReader reader;
+					if (range._offsets != null) {
+						reader = new GzipWarcReader(raf.getChannel(), findOffset(range._offsets, range._start, length), range._end);
+					} else if (range._gzip) {
+						reader = new GzipWarcReader(raf.getChannel(),
+								GzipWarcReader.findMemberStart(raf.getChannel(), range._start), range._end);
 					} else {
-						System.out.println("INFO found WARC-Type " + type);
+						reader = new MappedWarcReader(raf.getChannel(), findRecordStart(raf, range._start, length), range._end);
+					}
+					ExtendedWarcRecord record;
+					long startTime = System.nanoTime();
+					while ((record = reader.next()) != null) {
+						// cutting and inflating the record, waiting for the queue is not counted
+						_readTime.since(startTime);
+						_readRecords.increment();
+						_readBytes.add(record.getLength());
+						String type = record.getType();
+						if (WARC_TYPE_RESPONSE.equals(type)) {
+							// images, pdfs, redirects and errors never get decoded
+							if (record.readHttpHeader()) {
+								long dropped = record.truncate(_maxPageBytes);
+								if (dropped > 0) {
+									_truncated.incrementAndGet();
+									_truncatedBytes.addAndGet(dropped);
+								}
+								record.setSourceFile(sourceFile);
+								if (_progress != null) {
+									record.setRange(range._id);
+									_progress.read(range._id, record.getOffset());
+								}
+								_queue.put(record, record.getSize()); // <--
+							} else {
+								_skipped.incrementAndGet();
+							}
+						} else if (WARC_TYPE_WARCINFO.equals(type)) { 
+							// nothing special just the warc main header
+							// ignore
+						} else {
+							System.out.println("INFO found WARC-Type " + type);
+						}
+						position = record.getOffset() + record.getLength();
+						if (_progress != null)
+							_progress.advance(range._id, position);
+						if (++_read%1000==0)
+							System.out.println("INFO: Reader#"+_threadNumber+" read " + _read);
+						startTime = System.nanoTime();
 					}
+					if (_progress != null)
+						_progress.advance(range._id, range._end);
+				} finally {
+					raf.close();
 				}
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
+				// checkpoint of the range stays at the position, the indexer commits it
+				// instead of marking the archive as indexed, so resume retries the rest
+				_failed.incrementAndGet();
+				_failedBytes.addAndGet(Math.max(0, range._end - position));
+				_readFailures.increment();
+				System.err.println("There was a problem with reading range " + range._id + " (" + range._start + "-"
+						+ range._end + ") of the Web Archive " + sourceFile + " at offset " + position
+						+ ", the rest of the range is not indexed.");
 				e.printStackTrace();
 			}
 		}
-		
-	}
 	
+	}
+
 }
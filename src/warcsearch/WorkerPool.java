@@ -0,0 +1,134 @@
+package warcsearch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WorkerPool runs workers of one pipeline stage on an executor
+ * the number of workers can be changed while the stage runs (see Autotuner):
+ * new workers are submitted when it grows, workers retire between two records
+ * when it shrinks, workers end on their own when their input queue is closed
+ * thread safe
+ */
+public class WorkerPool {
+
+	/**
+	 * creates workers of the stage
+	 */
+	public interface WorkerFactory {
+
+		/**
+		 * @param workerNumber sequential number of the worker
+		 * @return the worker, its loop calls retire() before every record
+		 *         and done() when it ends
+		 */
+		public Runnable create(int workerNumber);
+
+	}
+
+	/** name of the stage for thread names */
+	private final String _name;
+
+	private final WorkerFactory _factory;
+
+	private final ExecutorService _executor;
+
+	/** wanted and running number of workers */
+	private final AtomicInteger _target = new AtomicInteger();
+	private final AtomicInteger _running = new AtomicInteger();
+
+	/** number of workers created so far */
+	private final AtomicInteger _created = new AtomicInteger();
+
+	/** true when input of the stage ended */
+	private volatile boolean _finished = false;
+
+	/**
+	 * constructor
+	 * @param name name of the stage for thread names
+	 * @param factory creates workers of the stage
+	 */
+	public WorkerPool(String name, WorkerFactory factory) {
+		_name = name;
+		_factory = factory;
+		_executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger _threadNo = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, _name + "-" + _threadNo.getAndIncrement());
+			}
+		});
+	}
+
+	/**
+	 * starts the workers
+	 * @param workerNo number of workers
+	 */
+	public synchronized void start(int workerNo) {
+		resize(workerNo);
+	}
+
+	/**
+	 * changes the number of workers, ignored when the input ended
+	 * @param workerNo wanted number of workers, at least 1
+	 */
+	public synchronized void resize(int workerNo) {
+		if (_finished) return;
+		_target.set(Math.max(1, workerNo));
+		while (_running.get() < _target.get()) {
+			_running.incrementAndGet();
+			_executor.execute(_factory.create(_created.getAndIncrement()));
+		}
+	}
+
+	/**
+	 * called by worker before taking next record
+	 * @return true if the worker has to end because the pool shrinks,
+	 *         it is not counted as running anymore then
+	 */
+	public boolean retire() {
+		while (true) {
+			int running = _running.get();
+			if (running <= _target.get()) return false;
+			if (_running.compareAndSet(running, running - 1)) {
+				synchronized (this) {
+					notifyAll();
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * called by worker that ended because its input ended
+	 */
+	public synchronized void done() {
+		_finished = true;
+		_running.decrementAndGet();
+		notifyAll();
+	}
+
+	/**
+	 * waits until all workers end because the input ended
+	 * @throws InterruptedException
+	 */
+	public synchronized void await() throws InterruptedException {
+		try {
+			while (!_finished || _running.get() > 0)
+				wait();
+		} finally {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return number of running workers
+	 */
+	public int size() {
+		return _running.get();
+	}
+
+}